@@ -25,6 +25,7 @@ import net.hydromatic.morel.compile.CompiledStatement;
 import net.hydromatic.morel.compile.Compiles;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Environments;
+import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.parse.MorelParserImpl;
 import net.hydromatic.morel.parse.ParseException;
@@ -54,12 +55,21 @@ public class Main {
   private final PrintWriter out;
   private final boolean echo;
   private final Map<String, ForeignValue> valueMap;
+  private final Session session = new Session();
 
   /** Command-line entry point.
    *
    * @param args Command-line arguments */
   public static void main(String[] args) {
-    final Main main = new Main(args, System.in, System.out, ImmutableMap.of());
+    final Main main;
+    try {
+      main = new Main(args, System.in, System.out, ImmutableMap.of());
+    } catch (IllegalArgumentException e) {
+      // An invalid command-line argument
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
     try {
       main.run();
     } catch (Throwable e) {
@@ -82,6 +92,7 @@ public class Main {
     this.in = buffer(in);
     this.out = buffer(out);
     this.echo = Arrays.asList(args).contains("--echo");
+    this.session.parseArgs(Arrays.asList(args));
     this.valueMap = ImmutableMap.copyOf(valueMap);
   }
 
@@ -121,7 +132,7 @@ public class Main {
           out.write("\n");
         }
         final CompiledStatement compiled =
-            Compiles.prepareStatement(typeSystem, env, statement);
+            Compiles.prepareStatement(typeSystem, session, env, statement);
         compiled.eval(env, lines, bindings);
         for (String line : lines) {
           out.write(line);
@@ -27,6 +27,7 @@ import net.hydromatic.morel.compile.CompiledStatement;
 import net.hydromatic.morel.compile.Compiles;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Environments;
+import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.parse.MorelParserImpl;
 import net.hydromatic.morel.parse.ParseException;
@@ -64,6 +65,7 @@ public class Shell {
   private final boolean banner;
   private final boolean system;
   private final ImmutableMap<String, ForeignValue> valueMap;
+  private final Session session = new Session();
   private boolean help;
 
   /** Command-line entry point.
@@ -71,8 +73,15 @@ public class Shell {
    * @param args Command-line arguments */
   public static void main(String[] args) {
     try {
-      final Shell main =
-          new Shell(ImmutableList.copyOf(args), System.in, System.out);
+      final Shell main;
+      try {
+        main = new Shell(ImmutableList.copyOf(args), System.in, System.out);
+      } catch (IllegalArgumentException e) {
+        // An invalid command-line argument
+        System.err.println(e.getMessage());
+        System.exit(1);
+        return;
+      }
       main.run();
     } catch (Throwable e) {
       e.printStackTrace();
@@ -89,6 +98,7 @@ public class Shell {
     this.echo = argList.contains("--echo");
     this.help = argList.contains("--help");
     this.system = !argList.contains("--system=false");
+    this.session.parseArgs(argList);
     final ImmutableMap.Builder<String, ForeignValue> valueMapBuilder =
         ImmutableMap.builder();
     for (String arg : args) {
@@ -247,7 +257,8 @@ public class Shell {
           try {
             statement = smlParser.statementSemicolon();
             final CompiledStatement compiled =
-                Compiles.prepareStatement(typeSystem, env, statement);
+                Compiles.prepareStatement(typeSystem, session, env,
+                    statement);
             compiled.eval(env, lines, bindings);
             printAll(lines);
             terminal.writer().flush();
@@ -1337,8 +1337,8 @@ public class Ast {
     }
   }
 
-  /** A step in a {@code from} expression - {@code where}, {@code group}
-   * or {@code order}. */
+  /** A step in a {@code from} expression - {@code where}, {@code group},
+   * {@code order} or {@code take}. */
   public abstract static class FromStep extends AstNode {
     FromStep(Pos pos, Op op) {
       super(pos, op);
@@ -1402,6 +1402,30 @@ public class Ast {
     }
   }
 
+  /** A {@code take} clause in a {@code from} expression; passes at most
+   * the given number of rows to the next step. The expression is evaluated
+   * once, in the environment of the {@code from} expression. */
+  public static class Take extends FromStep {
+    public final Exp exp;
+
+    Take(Pos pos, Exp exp) {
+      super(pos, Op.TAKE);
+      this.exp = Objects.requireNonNull(exp);
+    }
+
+    @Override AstWriter unparse(AstWriter w, int left, int right) {
+      return w.append("take ").append(exp, 0, 0);
+    }
+
+    @Override public AstNode accept(Shuttle shuttle) {
+      return shuttle.visit(this);
+    }
+
+    public Take copy(Exp exp) {
+      return this.exp.equals(exp) ? this : new Take(pos, exp);
+    }
+  }
+
   /** An item in an {@code order} clause. */
   public static class OrderItem extends AstNode {
     public final Exp exp;
@@ -406,6 +406,10 @@ public enum AstBuilder {
     return new Ast.Where(pos, exp);
   }
 
+  public Ast.Take take(Pos pos, Ast.Exp exp) {
+    return new Ast.Take(pos, exp);
+  }
+
   public Ast.ApplicableExp wrapApplicable(Applicable applicable) {
     return new Ast.ApplicableExp(applicable);
   }
@@ -115,6 +115,7 @@ public enum Op {
   GROUP,
   ORDER,
   ORDER_ITEM,
+  TAKE,
   AGGREGATE,
   IF,
   MAP;
@@ -201,6 +201,10 @@ public class Shuttle {
     return ast.where(where.pos, where.exp.accept(this));
   }
 
+  public AstNode visit(Ast.Take take) {
+    return ast.take(take.pos, take.exp.accept(this));
+  }
+
   public AstNode visit(Ast.Group group) {
     return ast.group(group.pos, group.groupExps, group.aggregates);
   }
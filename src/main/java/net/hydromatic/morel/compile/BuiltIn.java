@@ -19,8 +19,10 @@
 package net.hydromatic.morel.compile;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 
 import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 
@@ -509,6 +511,54 @@ public enum BuiltIn {
             order));
   }),
 
+  /** Function "List.parMap", of type
+   * "(&alpha; &rarr; &beta;) &rarr; &alpha; list &rarr; &beta; list".
+   *
+   * <p>"parMap f l" returns the same list as "map f l", but may apply f to
+   * several elements of l at the same time. It does so only if the list is
+   * large and the compiler can see that f has no side effects; otherwise it
+   * is the same as "map f l". Not in the standard basis library. */
+  LIST_PAR_MAP("List.parMap", ts ->
+      ts.forallType(2, t ->
+          ts.fnType(ts.fnType(t.get(0), t.get(1)),
+              ts.listType(t.get(0)), ts.listType(t.get(1))))),
+
+  /** Function "List.parFilter", of type
+   * "(&alpha; &rarr; bool) &rarr; &alpha; list &rarr; &alpha; list".
+   *
+   * <p>"parFilter f l" returns the same list as "filter f l", but may apply
+   * f to several elements of l at the same time, in the same circumstances
+   * as {@link #LIST_PAR_MAP}. Not in the standard basis library. */
+  LIST_PAR_FILTER("List.parFilter", ts ->
+      ts.forallType(1, h -> ts.fnType(h.predicate(0), h.list(0), h.list(0)))),
+
+  /** Function "List.parTabulate", of type
+   * "int * (int &rarr; &alpha;) &rarr; &alpha; list".
+   *
+   * <p>"parTabulate (n, f)" returns the same list as "tabulate (n, f)", but
+   * may apply f to several integers at the same time, in the same
+   * circumstances as {@link #LIST_PAR_MAP}. Not in the standard basis
+   * library. */
+  LIST_PAR_TABULATE("List.parTabulate", ts ->
+      ts.forallType(1, h ->
+          ts.fnType(ts.tupleType(INT, ts.fnType(INT, h.get(0))), h.list(0)))),
+
+  /** Function "List.reduce", of type
+   * "(&alpha; * &alpha; &rarr; &alpha;) &rarr; &alpha; &rarr; &alpha; list
+   * &rarr; &alpha;".
+   *
+   * <p>"reduce f e [x1, x2, ..., xn]" returns
+   * {@code f(...f(f(e, x1), x2)..., xn)}, or e if the list is empty. If f is
+   * associative and e is its identity, such as {@code op +} and 0, the
+   * elements may be combined in any grouping, so a large list is reduced in
+   * parallel, as a tree. That happens only if the compiler can see that f has
+   * no side effects, as for {@link #LIST_PAR_MAP}. Not in the standard basis
+   * library. */
+  LIST_REDUCE("List.reduce", ts ->
+      ts.forallType(1, h ->
+          ts.fnType(ts.fnType(ts.tupleType(h.get(0), h.get(0)), h.get(0)),
+              h.get(0), h.list(0), h.get(0)))),
+
   /** Function "Relational.count", aka "count", of type "int list &rarr; int".
    *
    * <p>Often used with {@code group}:
@@ -550,9 +600,48 @@ public enum BuiltIn {
   RELATIONAL_MIN("Relational.min", "min", ts ->
       ts.forallType(1, h -> ts.fnType(ts.listType(h.get(0)), h.get(0)))),
 
+  /** Function "Relational.reduce", aka "reduce", of type
+   * "(&alpha; * &alpha; &rarr; &alpha;) &rarr; &alpha; &rarr; &alpha; list
+   * &rarr; &alpha;".
+   *
+   * <p>The same as {@link #LIST_REDUCE}; "reduce f e" is an aggregate
+   * function. For example,
+   *
+   * <blockquote>
+   *   <pre>
+   *     from e in emps
+   *     group deptno = (#deptno e)
+   *       compute maxId = (reduce (fn (x, y) =&gt;
+   *           if x &gt; y then x else y) 0) of (#id e)
+   *   </pre>
+   * </blockquote>
+   */
+  RELATIONAL_REDUCE("Relational.reduce", "reduce", ts ->
+      ts.forallType(1, h ->
+          ts.fnType(ts.fnType(ts.tupleType(h.get(0), h.get(0)), h.get(0)),
+              h.get(0), h.list(0), h.get(0)))),
+
   /** Function "Sys.env", aka "env", of type "unit &rarr; string list". */
   SYS_ENV("Sys.env", "env", ts ->
-      ts.fnType(UNIT, ts.listType(ts.tupleType(STRING, STRING))));
+      ts.fnType(UNIT, ts.listType(ts.tupleType(STRING, STRING)))),
+
+  /** Function "Sys.profile", of type
+   * "unit &rarr; {calls: int, name: string, tier: string} list".
+   *
+   * <p>"Sys.profile ()" returns, for each function that is being profiled,
+   * how many times it has been invoked, and whether it is interpreted or has
+   * been compiled. Functions are profiled only in the tiered backend
+   * ({@code --backend=tiered}). */
+  SYS_PROFILE("Sys.profile", ts ->
+      ts.fnType(UNIT,
+          ts.listType(
+              ts.recordType(
+                  ImmutableSortedMap.<String, Type>orderedBy(
+                      RecordType.ORDERING)
+                      .put("calls", INT)
+                      .put("name", STRING)
+                      .put("tier", STRING)
+                      .build()))));
 
   /** The name as it appears in ML's symbol table. */
   public final String mlName;
@@ -0,0 +1,609 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import com.google.common.collect.ImmutableList;
+
+import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.eval.Applicable;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.FnType;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.TupleType;
+import net.hydromatic.morel.type.Type;
+
+import org.codehaus.janino.SimpleCompiler;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/** Compiles functions to JVM bytecode.
+ *
+ * <p>Generates a Java class that implements {@link Applicable}, whose static
+ * method {@code fn} implements the function with arguments and local
+ * variables of primitive types, and compiles it with Janino. Each class is
+ * loaded by its own class loader, so is garbage-collected when the function
+ * is no longer referenced.
+ *
+ * <p>For example,
+ * {@code fun gcd (a, b) = if b = 0 then a else gcd (b, a mod b)}
+ * becomes
+ *
+ * <blockquote><pre>
+ * public static int fn(int p0, int p1) {
+ *   for (;;) {
+ *     if ((p1 == 0)) {
+ *       return p0;
+ *     } else {
+ *       final int v0 = p1;
+ *       final int v1 = Math.floorMod(p0, p1);
+ *       p0 = v0;
+ *       p1 = v1;
+ *       continue;
+ *     }
+ *   }
+ * }</pre></blockquote>
+ *
+ * <p>A call to the function itself in tail position becomes a jump to the
+ * start of the loop.
+ *
+ * <p>If the result is a tuple, {@code fn} returns a {@link List} of the
+ * boxed components, which is how the interpreter represents a tuple; such
+ * a function may only call itself in tail position.
+ *
+ * <p>Only a subset of the language can be compiled: the argument must be of
+ * type {@code int}, {@code real} or {@code bool}, or a tuple of those types,
+ * and so must the result; the body may use literals, arithmetic and
+ * comparison operators, {@code if}, {@code andalso}, {@code orelse}, calls
+ * to the function itself, and, in tail position, {@code let} and
+ * {@code case}. For any other function, {@link #compile} returns null, and
+ * the caller should use the interpreter. */
+class BytecodeCompiler {
+  /** Number of classes generated; gives each class a unique name. */
+  private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+  private final TypeResolver.TypeMap typeMap;
+  private final Environment env;
+  /** Name by which the function calls itself; null if not recursive. */
+  private final @Nullable String name;
+  private final StringBuilder buf = new StringBuilder();
+  private final List<String> paramTypes = new ArrayList<>();
+  /** Java types of the components of the result, if the result is a tuple;
+   * otherwise null. */
+  private @Nullable List<String> resultTypes;
+  private int varCount;
+
+  private BytecodeCompiler(TypeResolver.TypeMap typeMap, Environment env,
+      @Nullable String name) {
+    this.typeMap = typeMap;
+    this.env = env;
+    this.name = name;
+  }
+
+  /** Compiles a function to bytecode, or returns null if the function uses
+   * features that are not supported (or if the generated code does not
+   * compile).
+   *
+   * @param typeMap Types of the nodes of the function
+   * @param env Environment in which the function is defined
+   * @param name Name by which the function calls itself, if recursive, or null
+   * @param fn Function
+   */
+  static @Nullable Applicable compile(TypeResolver.TypeMap typeMap,
+      Environment env, @Nullable String name, Ast.Fn fn) {
+    final String className = "MorelFn" + CLASS_COUNT.getAndIncrement();
+    final String source;
+    try {
+      source = new BytecodeCompiler(typeMap, env, name)
+          .generate(className, fn);
+    } catch (UnsupportedException e) {
+      return null;
+    }
+    final SimpleCompiler compiler = new SimpleCompiler();
+    compiler.setParentClassLoader(BytecodeCompiler.class.getClassLoader());
+    try {
+      compiler.cook(source);
+    } catch (org.codehaus.commons.compiler.CompileException e) {
+      // The generator produced code that Janino rejects. That is a bug in
+      // the generator, but the interpreter can still evaluate the function.
+      return null;
+    }
+    try {
+      return (Applicable) compiler.getClassLoader().loadClass(className)
+          .getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Error while loading generated code:\n"
+          + source, e);
+    }
+  }
+
+  /** Generates the source code of a class that implements a function. */
+  private String generate(String className, Ast.Fn fn) {
+    if (fn.matchList.size() != 1) {
+      throw UnsupportedException.INSTANCE;
+    }
+    final Ast.Match match = fn.matchList.get(0);
+    final FnType fnType = (FnType) typeMap.getType(fn);
+    final String resultType;
+    if (fnType.resultType instanceof TupleType) {
+      resultTypes = javaTypes(fnType.resultType);
+      resultType = "java.util.List";
+    } else {
+      resultType = javaType(fnType.resultType);
+    }
+    paramTypes.addAll(javaTypes(fnType.paramType));
+    final List<String> params = new ArrayList<>();
+    for (int i = 0; i < paramTypes.size(); i++) {
+      params.add("p" + i);
+    }
+    final List<String> conditions = new ArrayList<>();
+    final Map<String, List<String>> scope =
+        bindPat(new HashMap<>(), match.pat, params, conditions);
+    if (!conditions.isEmpty()) {
+      throw UnsupportedException.INSTANCE;
+    }
+    tail(scope, match.e, "      ");
+
+    final List<String> args = new ArrayList<>();
+    final List<String> decls = new ArrayList<>();
+    for (int i = 0; i < paramTypes.size(); i++) {
+      final String boxed = boxedType(paramTypes.get(i));
+      final String arg = paramTypes.size() == 1 ? "arg"
+          : "((java.util.List) arg).get(" + i + ")";
+      args.add("((" + boxed + ") " + arg + ")." + paramTypes.get(i)
+          + "Value()");
+      decls.add(paramTypes.get(i) + " " + params.get(i));
+    }
+    return "public final class " + className
+        + " implements net.hydromatic.morel.eval.Applicable {\n"
+        + "  public Object apply(net.hydromatic.morel.eval.EvalEnv env,\n"
+        + "      Object arg) {\n"
+        + "    return " + box(resultType, "fn(" + String.join(", ", args) + ")")
+        + ";\n"
+        + "  }\n"
+        + "\n"
+        + "  public static " + resultType + " fn("
+        + String.join(", ", decls) + ") {\n"
+        + "    for (;;) {\n"
+        + buf
+        + "    }\n"
+        + "  }\n"
+        + "}\n";
+  }
+
+  /** Generates statements that evaluate an expression in tail position and
+   * either return its value or jump to the start of the function. */
+  private void tail(Map<String, List<String>> scope, Ast.Exp e,
+      String indent) {
+    switch (e.op) {
+    case ANNOTATED_EXP:
+      tail(scope, ((Ast.AnnotatedExp) e).e, indent);
+      return;
+
+    case IF:
+      final Ast.If if_ = (Ast.If) e;
+      buf.append(indent).append("if (").append(expr(scope, if_.condition))
+          .append(") {\n");
+      tail(scope, if_.ifTrue, indent + "  ");
+      buf.append(indent).append("} else {\n");
+      tail(scope, if_.ifFalse, indent + "  ");
+      buf.append(indent).append("}\n");
+      return;
+
+    case ANDALSO:
+    case ORELSE:
+      final Ast.InfixCall call = (Ast.InfixCall) e;
+      final boolean andAlso = e.op == Op.ANDALSO;
+      buf.append(indent).append("if (").append(andAlso ? "" : "!")
+          .append(expr(scope, call.a0)).append(") {\n");
+      tail(scope, call.a1, indent + "  ");
+      buf.append(indent).append("} else {\n")
+          .append(indent).append("  return ").append(!andAlso)
+          .append(";\n")
+          .append(indent).append("}\n");
+      return;
+
+    case LET:
+      final Ast.LetExp let = (Ast.LetExp) e;
+      Map<String, List<String>> scope2 = scope;
+      for (Ast.Decl decl : let.decls) {
+        if (decl.op != Op.VAL_DECL) {
+          throw UnsupportedException.INSTANCE;
+        }
+        for (Ast.ValBind valBind : ((Ast.ValDecl) decl).valBinds) {
+          if (valBind.rec) {
+            throw UnsupportedException.INSTANCE;
+          }
+          final List<String> vars =
+              declare(scope2, valBind.e, indent);
+          final List<String> conditions = new ArrayList<>();
+          scope2 = bindPat(scope2, valBind.pat, vars, conditions);
+          if (!conditions.isEmpty()) {
+            throw UnsupportedException.INSTANCE;
+          }
+        }
+      }
+      tail(scope2, let.e, indent);
+      return;
+
+    case CASE:
+      final Ast.Case case_ = (Ast.Case) e;
+      final List<String> vars = declare(scope, case_.e, indent);
+      for (Ast.Match match : case_.matchList) {
+        final List<String> conditions = new ArrayList<>();
+        final Map<String, List<String>> scope3 =
+            bindPat(scope, match.pat, vars, conditions);
+        buf.append(indent).append("if (")
+            .append(conditions.isEmpty() ? "true"
+                : String.join(" && ", conditions))
+            .append(") {\n");
+        tail(scope3, match.e, indent + "  ");
+        buf.append(indent).append("}\n");
+      }
+      buf.append(indent)
+          .append("throw new AssertionError(\"no match\");\n");
+      return;
+
+    case APPLY:
+      final Ast.Apply apply = (Ast.Apply) e;
+      if (isSelf(scope, apply.fn)) {
+        // Tail call to the function itself. Evaluate the arguments, assign
+        // them to the parameters, and go round the loop again.
+        final List<String> args = exprs(scope, apply.arg);
+        final List<String> temps = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+          final String temp = "v" + varCount++;
+          temps.add(temp);
+          buf.append(indent).append("final ").append(paramTypes.get(i))
+              .append(' ').append(temp).append(" = ").append(args.get(i))
+              .append(";\n");
+        }
+        for (int i = 0; i < temps.size(); i++) {
+          buf.append(indent).append("p").append(i).append(" = ")
+              .append(temps.get(i)).append(";\n");
+        }
+        buf.append(indent).append("continue;\n");
+        return;
+      }
+      // fall through
+
+    default:
+      if (resultTypes == null) {
+        buf.append(indent).append("return ").append(expr(scope, e))
+            .append(";\n");
+        return;
+      }
+      final List<String> components = exprs(scope, e);
+      final List<String> boxed = new ArrayList<>();
+      for (int i = 0; i < components.size(); i++) {
+        boxed.add(box(resultTypes.get(i), components.get(i)));
+      }
+      buf.append(indent).append("return java.util.Arrays.asList(")
+          .append(String.join(", ", boxed)).append(");\n");
+    }
+  }
+
+  /** Generates declarations of final local variables that hold the value,
+   * or the components of the tuple value, of an expression, and returns
+   * their names. */
+  private List<String> declare(Map<String, List<String>> scope, Ast.Exp e,
+      String indent) {
+    final List<String> types = javaTypes(typeMap.getType(e));
+    final List<String> exprs = exprs(scope, e);
+    final List<String> vars = new ArrayList<>();
+    for (int i = 0; i < exprs.size(); i++) {
+      final String var = "v" + varCount++;
+      vars.add(var);
+      buf.append(indent).append("final ").append(types.get(i)).append(' ')
+          .append(var).append(" = ").append(exprs.get(i)).append(";\n");
+    }
+    return vars;
+  }
+
+  /** Binds the variables of a pattern to the components of a value, and adds
+   * to {@code conditions} the conditions for the value to match. */
+  private Map<String, List<String>> bindPat(Map<String, List<String>> scope,
+      Ast.Pat pat, List<String> values, List<String> conditions) {
+    switch (pat.op) {
+    case ANNOTATED_PAT:
+      return bindPat(scope, ((Ast.AnnotatedPat) pat).pat, values, conditions);
+
+    case WILDCARD_PAT:
+      return scope;
+
+    case ID_PAT:
+      final Map<String, List<String>> scope2 = new HashMap<>(scope);
+      scope2.put(((Ast.IdPat) pat).name, values);
+      return scope2;
+
+    case BOOL_LITERAL_PAT:
+      final boolean b = (Boolean) ((Ast.LiteralPat) pat).value;
+      conditions.add((b ? "" : "!") + values.get(0));
+      return scope;
+
+    case INT_LITERAL_PAT:
+      final int i = ((BigDecimal) ((Ast.LiteralPat) pat).value).intValue();
+      conditions.add(values.get(0) + " == " + intLiteral(i));
+      return scope;
+
+    case TUPLE_PAT:
+      final List<Ast.Pat> args = ((Ast.TuplePat) pat).args;
+      if (args.size() != values.size()) {
+        // Nested tuples are not supported
+        throw UnsupportedException.INSTANCE;
+      }
+      Map<String, List<String>> scope3 = scope;
+      for (int j = 0; j < args.size(); j++) {
+        scope3 = bindPat(scope3, args.get(j),
+            ImmutableList.of(values.get(j)), conditions);
+      }
+      return scope3;
+
+    default:
+      throw UnsupportedException.INSTANCE;
+    }
+  }
+
+  /** Generates Java expressions for an expression whose type is primitive
+   * (one expression) or a tuple of primitive types (one expression for each
+   * component). */
+  private List<String> exprs(Map<String, List<String>> scope, Ast.Exp e) {
+    switch (e.op) {
+    case TUPLE:
+      final List<String> list = new ArrayList<>();
+      for (Ast.Exp arg : ((Ast.Tuple) e).args) {
+        list.add(expr(scope, arg));
+      }
+      return list;
+    case ID:
+      final List<String> values = scope.get(((Ast.Id) e).name);
+      if (values != null) {
+        return values;
+      }
+      // fall through
+    default:
+      return ImmutableList.of(expr(scope, e));
+    }
+  }
+
+  /** Generates a Java expression for an expression of primitive type. */
+  private String expr(Map<String, List<String>> scope, Ast.Exp e) {
+    final String type = javaType(typeMap.getType(e));
+    switch (e.op) {
+    case BOOL_LITERAL:
+    case INT_LITERAL:
+    case REAL_LITERAL:
+      return literal(type, ((Ast.Literal) e).value);
+
+    case ID:
+      final String name = ((Ast.Id) e).name;
+      final List<String> values = scope.get(name);
+      if (values != null) {
+        return values.get(0);
+      }
+      // A value defined in a previous statement
+      final Binding binding = env.getOpt(name);
+      if (binding != null
+          && (binding.value instanceof Integer
+              || binding.value instanceof Float
+              || binding.value instanceof Boolean)) {
+        return literal(type, binding.value);
+      }
+      throw UnsupportedException.INSTANCE;
+
+    case ANNOTATED_EXP:
+      return expr(scope, ((Ast.AnnotatedExp) e).e);
+
+    case IF:
+      final Ast.If if_ = (Ast.If) e;
+      return "(" + expr(scope, if_.condition)
+          + " ? " + expr(scope, if_.ifTrue)
+          + " : " + expr(scope, if_.ifFalse) + ")";
+
+    case ANDALSO:
+    case ORELSE:
+      final Ast.InfixCall call = (Ast.InfixCall) e;
+      return "(" + expr(scope, call.a0)
+          + (e.op == Op.ANDALSO ? " && " : " || ")
+          + expr(scope, call.a1) + ")";
+
+    case APPLY:
+      return applyExpr(scope, (Ast.Apply) e);
+
+    default:
+      throw UnsupportedException.INSTANCE;
+    }
+  }
+
+  private String applyExpr(Map<String, List<String>> scope,
+      Ast.Apply apply) {
+    if (isSelf(scope, apply.fn)) {
+      final List<String> args = exprs(scope, apply.arg);
+      return "fn(" + String.join(", ", args) + ")";
+    }
+    if (apply.fn.op != Op.ID
+        || scope.containsKey(((Ast.Id) apply.fn).name)) {
+      throw UnsupportedException.INSTANCE;
+    }
+    final BuiltIn builtIn = Compiler.builtIn(env, apply.fn);
+    if (builtIn == null) {
+      throw UnsupportedException.INSTANCE;
+    }
+    final Type argType = typeMap.getType(apply.arg);
+    switch (builtIn) {
+    case NOT:
+      return "(!" + expr(scope, apply.arg) + ")";
+    case OP_NEGATE:
+      return "(-" + expr(scope, apply.arg) + ")";
+    case ABS:
+      return "Math.abs(" + expr(scope, apply.arg) + ")";
+    default:
+      break;
+    }
+    final List<String> args = exprs(scope, apply.arg);
+    if (args.size() != 2) {
+      throw UnsupportedException.INSTANCE;
+    }
+    final String a0 = args.get(0);
+    final String a1 = args.get(1);
+    final Type type = ((TupleType) argType).argTypes.get(0);
+    switch (builtIn) {
+    case OP_PLUS:
+      return "(" + a0 + " + " + a1 + ")";
+    case OP_MINUS:
+      return "(" + a0 + " - " + a1 + ")";
+    case OP_TIMES:
+      return "(" + a0 + " * " + a1 + ")";
+    case OP_DIVIDE:
+      return "(" + a0 + " / " + a1 + ")";
+    case OP_DIV:
+      return "Math.floorDiv(" + a0 + ", " + a1 + ")";
+    case OP_MOD:
+      return "Math.floorMod(" + a0 + ", " + a1 + ")";
+    case OP_EQ:
+      return compare(type, a0, "==", a1);
+    case OP_NE:
+      return compare(type, a0, "!=", a1);
+    case OP_LT:
+      return compare(type, a0, "<", a1);
+    case OP_LE:
+      return compare(type, a0, "<=", a1);
+    case OP_GT:
+      return compare(type, a0, ">", a1);
+    case OP_GE:
+      return compare(type, a0, ">=", a1);
+    default:
+      throw UnsupportedException.INSTANCE;
+    }
+  }
+
+  /** Generates a comparison, with the same semantics as the interpreter;
+   * reals are compared using {@link Float#compare}, so that NaN equals
+   * itself. */
+  private static String compare(Type type, String a0, String op,
+      String a1) {
+    switch ((PrimitiveType) type) {
+    case INT:
+      return "(" + a0 + " " + op + " " + a1 + ")";
+    case REAL:
+      return "(Float.compare(" + a0 + ", " + a1 + ") " + op + " 0)";
+    case BOOL:
+      return "(Boolean.compare(" + a0 + ", " + a1 + ") " + op + " 0)";
+    default:
+      throw UnsupportedException.INSTANCE;
+    }
+  }
+
+  /** Returns whether an expression refers to the function being compiled. */
+  private boolean isSelf(Map<String, List<String>> scope, Ast.Exp fn) {
+    return name != null
+        && fn.op == Op.ID
+        && ((Ast.Id) fn).name.equals(name)
+        && !scope.containsKey(name);
+  }
+
+  private static String literal(String type, Object value) {
+    switch (type) {
+    case "int":
+      return intLiteral(((Number) value).intValue());
+    case "float":
+      final float f = ((Number) value).floatValue();
+      if (Float.isNaN(f)) {
+        return "Float.NaN";
+      }
+      if (Float.isInfinite(f)) {
+        return f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+      }
+      return f < 0 ? "(" + f + "F)" : f + "F";
+    default:
+      return value.toString();
+    }
+  }
+
+  private static String intLiteral(int i) {
+    return i < 0 ? "(" + i + ")" : Integer.toString(i);
+  }
+
+  /** Returns the Java type of a value of a given Morel type, or throws if
+   * the type is not {@code int}, {@code real} or {@code bool}. */
+  private static String javaType(Type type) {
+    if (type instanceof PrimitiveType) {
+      switch ((PrimitiveType) type) {
+      case INT:
+        return "int";
+      case REAL:
+        return "float";
+      case BOOL:
+        return "boolean";
+      default:
+        break;
+      }
+    }
+    throw UnsupportedException.INSTANCE;
+  }
+
+  /** Returns the Java types of the components of a primitive or tuple
+   * type. */
+  private static List<String> javaTypes(Type type) {
+    if (type instanceof TupleType) {
+      final List<String> types = new ArrayList<>();
+      for (Type argType : ((TupleType) type).argTypes) {
+        types.add(javaType(argType));
+      }
+      return types;
+    }
+    return ImmutableList.of(javaType(type));
+  }
+
+  /** Generates an expression that converts a Java expression of a given type
+   * to an object; a {@code java.util.List} is already an object. */
+  private static String box(String type, String expr) {
+    return type.equals("java.util.List") ? expr
+        : boxedType(type) + ".valueOf(" + expr + ")";
+  }
+
+  private static String boxedType(String type) {
+    switch (type) {
+    case "int":
+      return "Integer";
+    case "float":
+      return "Float";
+    default:
+      return "Boolean";
+    }
+  }
+
+  /** Thrown when the function uses a feature that the generator does not
+   * support. */
+  private static class UnsupportedException extends RuntimeException {
+    static final UnsupportedException INSTANCE = new UnsupportedException();
+
+    private UnsupportedException() {
+      super(null, null, false, false);
+    }
+  }
+}
+
+// End BytecodeCompiler.java
@@ -19,35 +19,50 @@
 package net.hydromatic.morel.compile;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Pos;
 import net.hydromatic.morel.eval.Applicable;
-import net.hydromatic.morel.eval.Closure;
+import net.hydromatic.morel.eval.Applicable2;
+import net.hydromatic.morel.eval.Applicable3;
 import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.EvalEnv;
+import net.hydromatic.morel.eval.FunctionProfile;
+import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.eval.Unit;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.ListType;
+import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.RecordType;
+import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
 import net.hydromatic.morel.util.TailList;
 
 import java.math.BigDecimal;
-import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 import static net.hydromatic.morel.ast.Ast.Direction.DESC;
 import static net.hydromatic.morel.ast.AstBuilder.ast;
@@ -58,16 +73,22 @@ public class Compiler {
   private static final EvalEnv EMPTY_ENV = Codes.emptyEnv();
 
   private final TypeResolver.TypeMap typeMap;
+  private final Session session;
 
   public Compiler(TypeResolver.TypeMap typeMap) {
+    this(typeMap, new Session());
+  }
+
+  public Compiler(TypeResolver.TypeMap typeMap, Session session) {
     this.typeMap = typeMap;
+    this.session = Objects.requireNonNull(session);
   }
 
   CompiledStatement compileStatement(Environment env, Ast.Decl decl) {
     final List<Code> varCodes = new ArrayList<>();
     final List<Binding> bindings = new ArrayList<>();
     final List<Action> actions = new ArrayList<>();
-    compileDecl(env, decl, varCodes, bindings, actions);
+    compileDecl(Context.of(env), decl, varCodes, bindings, actions);
     final Type type = typeMap.getType(decl);
 
     return new CompiledStatement() {
@@ -95,6 +116,22 @@ public class Compiler {
   }
 
   public Code compile(Environment env, Ast.Exp expression) {
+    return compile(Context.of(env), expression);
+  }
+
+  private Code compile(Context cx, Ast.Exp expression) {
+    return compile(cx, expression, false);
+  }
+
+  /** Compiles an expression.
+   *
+   * @param cx Compile context
+   * @param expression Expression
+   * @param tail Whether the expression is in tail position in the body of a
+   *   function; if so, and it applies a closure, it returns a request to apply
+   *   the closure rather than applying it (see {@link Codes#tailApply})
+   */
+  private Code compile(Context cx, Ast.Exp expression, boolean tail) {
     final Ast.Literal literal;
     final Code argCode;
     final List<Code> codes;
@@ -127,24 +164,33 @@ public class Compiler {
 
     case IF:
       final Ast.If if_ = (Ast.If) expression;
-      final Code conditionCode = compile(env, if_.condition);
-      final Code trueCode = compile(env, if_.ifTrue);
-      final Code falseCode = compile(env, if_.ifFalse);
+      final Code conditionCode = compile(cx, if_.condition);
+      if (conditionCode.isConstant()) {
+        // The condition is known at compile time. Compile only the branch
+        // that will be taken.
+        return (Boolean) conditionCode.eval(EMPTY_ENV)
+            ? compile(cx, if_.ifTrue, tail)
+            : compile(cx, if_.ifFalse, tail);
+      }
+      final Code trueCode = compile(cx, if_.ifTrue, tail);
+      final Code falseCode = compile(cx, if_.ifFalse, tail);
       return Codes.ifThenElse(conditionCode, trueCode, falseCode);
 
     case LET:
       final Ast.LetExp let = (Ast.LetExp) expression;
-      return compileLet(env, let.decls, let.e);
+      return compileLet(cx, let.decls, let.e, tail);
 
     case FN:
       final Ast.Fn fn = (Ast.Fn) expression;
-      return compileMatchList(env, fn.matchList);
+      return compileMatchList(cx, new Scope(cx, ImmutableMap.of()),
+          fn.matchList);
 
     case CASE:
       final Ast.Case case_ = (Ast.Case) expression;
-      final Code matchCode = compileMatchList(env, case_.matchList);
-      argCode = compile(env, case_.e);
-      return Codes.apply(matchCode, argCode);
+      if (case_.matchList.size() == 1) {
+        return compileBeta(cx, case_.matchList.get(0), case_.e, tail);
+      }
+      return compileCase(cx, case_, tail);
 
     case RECORD_SELECTOR:
       final Ast.RecordSelector recordSelector = (Ast.RecordSelector) expression;
@@ -152,81 +198,536 @@ public class Compiler {
 
     case APPLY:
       final Ast.Apply apply = (Ast.Apply) expression;
+      if (apply.fn.op == Op.FN
+          && ((Ast.Fn) apply.fn).matchList.size() == 1) {
+        return compileBeta(cx, ((Ast.Fn) apply.fn).matchList.get(0),
+            apply.arg, tail);
+      }
+      final Code saturatedCode = compileSaturated(cx, apply);
+      if (saturatedCode != null) {
+        return saturatedCode;
+      }
       assignSelector(apply);
-      argCode = compile(env, apply.arg);
+      final BuiltIn builtIn = builtIn(cx.env, apply.fn);
+      if (builtIn != null
+          && apply.arg.op == Op.TUPLE
+          && ((Ast.Tuple) apply.arg).args.size() == 2) {
+        // Call to a built-in operator, such as "x + 1". Try to evaluate the
+        // operands without building a tuple.
+        final List<Ast.Exp> args = ((Ast.Tuple) apply.arg).args;
+        final Code code0 = compile(cx, args.get(0));
+        final Code code1 = compile(cx, args.get(1));
+        final Code code = Codes.binary(builtIn,
+            typeMap.getType(args.get(0)), code0, code1);
+        if (code != null) {
+          return code0.isConstant() && code1.isConstant()
+              ? fold(code)
+              : code;
+        }
+        final List<Code> codes2 = ImmutableList.of(code0, code1);
+        argCode = foldIfConstant(Codes.tuple(codes2), codes2);
+      } else {
+        argCode = compile(cx, apply.arg);
+      }
       final Type argType = typeMap.getType(apply.arg);
-      final Applicable fnValue = compileApplicable(env, apply.fn, argType);
+      final Applicable fnValue = compileApplicable(cx, apply.fn, argType);
       if (fnValue != null) {
-        return Codes.apply(fnValue, argCode);
+        if (builtIn == null && tail) {
+          return Codes.tailApply(fnValue, argCode);
+        }
+        final Code code = Codes.apply(fnValue, argCode);
+        // Sys.profile is the only built-in whose result changes over time
+        return builtIn != null && builtIn != BuiltIn.SYS_PROFILE
+            && argCode.isConstant()
+            ? fold(code)
+            : code;
       }
-      final Code fnCode = compile(env, apply.fn);
-      return Codes.apply(fnCode, argCode);
+      final Code fnCode = compile(cx, apply.fn);
+      return tail
+          ? Codes.tailApply(fnCode, argCode)
+          : Codes.apply(fnCode, argCode);
 
     case LIST:
       final Ast.List list = (Ast.List) expression;
       codes = new ArrayList<>();
       for (Ast.Exp arg : list.args) {
-        codes.add(compile(env, arg));
+        codes.add(compile(cx, arg));
       }
-      return Codes.list(codes);
+      return foldIfConstant(Codes.list(codes), codes);
 
     case FROM:
       final Ast.From from = (Ast.From) expression;
       final Map<Ast.Pat, Code> sourceCodes = new LinkedHashMap<>();
       final List<Binding> bindings = new ArrayList<>();
+      final List<Context> sourceCxs = new ArrayList<>();
+      Context cx2 = cx;
       for (Map.Entry<Ast.Pat, Ast.Exp> patExp : from.sources.entrySet()) {
-        final Code expCode = compile(env.bindAll(bindings), patExp.getValue());
+        sourceCxs.add(cx2);
+        final Code expCode = compile(cx2, patExp.getValue());
         final Ast.Pat pat = patExp.getKey();
         sourceCodes.put(pat, expCode);
-        pat.visit(p -> {
-          if (p instanceof Ast.IdPat) {
-            final Ast.IdPat idPat = (Ast.IdPat) p;
-            bindings.add(Binding.of(idPat.name, typeMap.getType(pat)));
-          }
-        });
+        final List<Binding> patBindings = patBindings(pat);
+        cx2 = cx2.bindSlots(patBindings);
+        bindings.addAll(patBindings);
+      }
+      sourceCxs.add(cx2);
+      final Map<Integer, Pair<Code, Code>> joins = new HashMap<>();
+      final Map<Integer, Code> filters = new HashMap<>();
+      final Map<Integer, Code> cacheKeys = new HashMap<>();
+      if (from.sources.size() > 1) {
+        planCaches(from, sourceCxs, cacheKeys);
       }
+      final List<Ast.FromStep> steps =
+          from.sources.size() > 1
+              && !from.steps.isEmpty()
+              && from.steps.get(0).op == Op.WHERE
+              ? planFrom(cx, from, sourceCxs, joins, filters)
+              : from.steps;
       Supplier<Codes.RowSink> rowSinkFactory =
-          createRowSinkFactory(env, ImmutableList.copyOf(bindings), from.steps,
-              from.yieldExpOrDefault);
-      return Codes.from(sourceCodes, rowSinkFactory);
+          createRowSinkFactory(cx, cx2, ImmutableList.copyOf(bindings),
+              steps, from.yieldExpOrDefault);
+      return Codes.from(typeMap.typeSystem, sourceCodes,
+          ImmutableMap.copyOf(joins), ImmutableMap.copyOf(filters),
+          ImmutableMap.copyOf(cacheKeys), rowSinkFactory);
 
     case ID:
       final Ast.Id id = (Ast.Id) expression;
-      final Binding binding = env.getOpt(id.name);
-      if (binding != null && binding.value instanceof Code) {
+      final Binding binding = cx.env.get(id.name);
+      if (binding.value instanceof Slot) {
+        final Slot slot = (Slot) binding.value;
+        slot.used = true;
+        if (slot.scope == cx.scope) {
+          return Codes.get(id.name, cx.depth - slot.depth, slot.index);
+        }
+        // The variable belongs to an enclosing function. The closure has a
+        // copy of its value, in the environment at depth 0 of the scope.
+        return Codes.get(id.name, cx.depth, capture(cx.scope, id, slot));
+      }
+      if (binding.value instanceof Code) {
         return (Code) binding.value;
       }
-      return Codes.get(id.name);
+      if (builtIn(cx.env, id) == BuiltIn.SYS_PROFILE) {
+        return Codes.constant(Codes.sysProfile(session.profiles));
+      }
+      // A value that is known at compile time, such as a built-in function
+      // or a value defined in a previous statement.
+      return Codes.constant(binding.value);
 
     case TUPLE:
       final Ast.Tuple tuple = (Ast.Tuple) expression;
       codes = new ArrayList<>();
       for (Ast.Exp arg : tuple.args) {
-        codes.add(compile(env, arg));
+        codes.add(compile(cx, arg));
       }
-      return Codes.tuple(codes);
+      return foldIfConstant(Codes.tuple(codes), codes);
 
     case RECORD:
       final Ast.Record record = (Ast.Record) expression;
-      return compile(env, ast.tuple(record.pos, record.args.values()));
+      return compile(cx, ast.tuple(record.pos, record.args.values()));
 
     case ANDALSO:
     case ORELSE:
     case CONS:
-      return compileInfix(env, (Ast.InfixCall) expression,
-          typeMap.getType(expression));
+      return compileInfix(cx, (Ast.InfixCall) expression,
+          typeMap.getType(expression), tail);
 
     default:
       throw new AssertionError("op not handled: " + expression.op);
     }
   }
 
-  private Supplier<Codes.RowSink> createRowSinkFactory(Environment env0,
-      ImmutableList<Binding> bindings, List<Ast.FromStep> steps,
+  /** Decides which sources of a {@code from} expression need to be
+   * evaluated only once, or once for each value of the variables they
+   * reference.
+   *
+   * <p>The expression of a source after the first is evaluated in an
+   * environment that contains the variables of the previous sources. If it
+   * does not reference those variables, as in
+   * {@code from e in emps, d in List.filter p depts}, its value is the
+   * same each time, and we evaluate it once. If it references some of them,
+   * as in {@code from d in depts, e in List.filter (fn e => e.deptno =
+   * d.deptno) emps}, we keep only its most recent value, and evaluate it
+   * again when the values of those variables change.
+   *
+   * <p>Populates {@code cacheKeys} with the code that computes, in the
+   * environment in which the source is evaluated, the key under which its
+   * value is cached; key is the ordinal of the source. */
+  private void planCaches(Ast.From from, List<Context> sourceCxs,
+      Map<Integer, Code> cacheKeys) {
+    final List<Ast.Exp> sourceExps = ImmutableList.copyOf(from.sources.values());
+    final Set<String> previousNames = new TreeSet<>();
+    int i = 0;
+    for (Ast.Pat pat : from.sources.keySet()) {
+      final Set<String> refs = new HashSet<>();
+      if (i > 0 && refs(sourceExps.get(i), refs)) {
+        final List<Ast.Exp> keyExps = new ArrayList<>();
+        for (String name : previousNames) {
+          if (refs.contains(name)) {
+            keyExps.add(ast.id(Pos.ZERO, name));
+          }
+        }
+        cacheKeys.put(i,
+            keyExps.isEmpty()
+                ? Codes.constant(Unit.INSTANCE)
+                : compileKey(sourceCxs.get(i), keyExps));
+      }
+      pat.visit(p -> {
+        if (p instanceof Ast.IdPat) {
+          previousNames.add(((Ast.IdPat) p).name);
+        }
+      });
+      ++i;
+    }
+  }
+
+  /** Plans hash joins and filters for a {@code from} expression that has
+   * more than one source and whose first step is {@code where}.
+   *
+   * <p>Consider a conjunct of the {@code where} condition of the form
+   * {@code a = b}, where {@code a} references the variables of source
+   * {@code i} and {@code b} references only variables of the sources before
+   * {@code i}. If the expression of source {@code i} does not reference the
+   * variables of the sources before it, then rather than evaluating source
+   * {@code i} for each combination of values of the previous sources, we
+   * can build a hash table on it, keyed by {@code a}, and look up the value
+   * of {@code b}. If there are several such conjuncts, the key is a tuple.
+   * The rows are produced in the same order as by nested loops.
+   *
+   * <p>Each other conjunct is evaluated in the loop of the last source
+   * whose variables it references. For example, in
+   * {@code from e in emps, d in depts, p in projects where e.deptno = 10},
+   * the filter {@code e.deptno = 10} is applied to each employee, before
+   * iterating over departments and projects. A conjunct that references the
+   * variables of the last source remains in the {@code where} step.
+   *
+   * <p>A conjunct that is evaluated in an earlier loop is evaluated for
+   * rows that the original {@code where} would never have seen, such as
+   * when a later source is empty or an earlier conjunct is false. Therefore
+   * we only move conjuncts whose evaluation cannot fail (see
+   * {@link #cannotFail}); a conjunct such as {@code 10 div x > 0} remains
+   * in the {@code where} step.
+   *
+   * <p>Populates {@code joins} with the code for the key of each source that
+   * is to be joined by hash (evaluated in the environment of that source)
+   * and the code for the value to look up (evaluated in the environment of
+   * the previous source), and {@code filters} with the code for the
+   * conjuncts that are evaluated in each loop. Returns the steps of the
+   * {@code from} expression, with those conjuncts removed.
+   *
+   * @param cx Context of the {@code from} expression
+   * @param from From expression
+   * @param sourceCxs Context in which each source is evaluated, and finally
+   *                  the context in which the steps are evaluated
+   * @param joins Map to populate; key is the ordinal of the source
+   * @param filters Map to populate; key is the ordinal of the source
+   */
+  private List<Ast.FromStep> planFrom(Context cx, Ast.From from,
+      List<Context> sourceCxs, Map<Integer, Pair<Code, Code>> joins,
+      Map<Integer, Code> filters) {
+    final List<Set<String>> sourceNames = new ArrayList<>();
+    final Set<String> allNames = new HashSet<>();
+    for (Ast.Pat pat : from.sources.keySet()) {
+      final Set<String> names = new HashSet<>();
+      pat.visit(p -> {
+        if (p instanceof Ast.IdPat) {
+          names.add(((Ast.IdPat) p).name);
+        }
+      });
+      for (String name : names) {
+        if (!allNames.add(name)) {
+          return from.steps; // variable is bound by more than one source
+        }
+      }
+      sourceNames.add(names);
+    }
+
+    final Ast.Where where = (Ast.Where) from.steps.get(0);
+    final List<Ast.Exp> conjuncts = new ArrayList<>();
+    flattenAnd(where.exp, conjuncts);
+    final List<Ast.Exp> residuals = new ArrayList<>(conjuncts);
+    final List<Ast.Exp> sourceExps = ImmutableList.copyOf(from.sources.values());
+    final Set<String> previousNames = new HashSet<>(sourceNames.get(0));
+    for (int i = 1; i < sourceExps.size(); i++) {
+      final Set<String> names = sourceNames.get(i);
+      final Set<String> sourceRefs = new HashSet<>();
+      if (refs(sourceExps.get(i), sourceRefs)
+          && Collections.disjoint(sourceRefs, previousNames)) {
+        final List<Ast.Exp> buildKeys = new ArrayList<>();
+        final List<Ast.Exp> probeKeys = new ArrayList<>();
+        for (Ast.Exp conjunct : ImmutableList.copyOf(residuals)) {
+          final List<Ast.Exp> args = equalityArgs(cx, conjunct);
+          if (args == null) {
+            continue;
+          }
+          for (int j = 0; j < 2; j++) {
+            final Ast.Exp build = args.get(j);
+            final Ast.Exp probe = args.get(1 - j);
+            final Set<String> buildRefs = new HashSet<>();
+            final Set<String> probeRefs = new HashSet<>();
+            if (keyRefs(build, buildRefs)
+                && keyRefs(probe, probeRefs)) {
+              buildRefs.retainAll(allNames);
+              probeRefs.retainAll(allNames);
+              if (!buildRefs.isEmpty()
+                  && names.containsAll(buildRefs)
+                  && previousNames.containsAll(probeRefs)) {
+                buildKeys.add(build);
+                probeKeys.add(probe);
+                residuals.remove(conjunct);
+                break;
+              }
+            }
+          }
+        }
+        if (!buildKeys.isEmpty()) {
+          joins.put(i,
+              Pair.of(compileKey(sourceCxs.get(i + 1), buildKeys),
+                  compileKey(sourceCxs.get(i), probeKeys)));
+        }
+      }
+      previousNames.addAll(names);
+    }
+
+    final int last = sourceExps.size() - 1;
+    final Map<Integer, List<Ast.Exp>> filterConjuncts = new TreeMap<>();
+    for (Ast.Exp conjunct : ImmutableList.copyOf(residuals)) {
+      final Set<String> refs = new HashSet<>();
+      if (!cannotFail(cx, conjunct, refs)) {
+        continue;
+      }
+      int i = last;
+      while (i > 0 && Collections.disjoint(refs, sourceNames.get(i))) {
+        --i;
+      }
+      if (i < last) {
+        filterConjuncts.computeIfAbsent(i, i_ -> new ArrayList<>())
+            .add(conjunct);
+        residuals.remove(conjunct);
+      }
+    }
+    filterConjuncts.forEach((i, exps) -> {
+      final Context cx2 = sourceCxs.get(i + 1);
+      Code code = compile(cx2, exps.get(0));
+      for (Ast.Exp exp : exps.subList(1, exps.size())) {
+        code = Codes.andAlso(code, compile(cx2, exp));
+      }
+      filters.put(i, code);
+    });
+
+    if (residuals.size() == conjuncts.size()) {
+      return from.steps;
+    }
+    // Replace "where" with a "where" for each remaining conjunct.
+    final List<Ast.FromStep> steps = new ArrayList<>();
+    for (Ast.Exp residual : residuals) {
+      steps.add(ast.where(where.pos, residual));
+    }
+    steps.addAll(from.steps.subList(1, from.steps.size()));
+    return steps;
+  }
+
+  /** If an expression is a call to the {@code =} operator, such as
+   * {@code e.deptno = d.deptno}, whose operands can be compared using a hash
+   * table, returns the operands; otherwise null. */
+  private @Nullable List<Ast.Exp> equalityArgs(Context cx, Ast.Exp exp) {
+    if (exp.op != Op.APPLY) {
+      return null;
+    }
+    final Ast.Apply apply = (Ast.Apply) exp;
+    if (builtIn(cx.env, apply.fn) != BuiltIn.OP_EQ
+        || apply.arg.op != Op.TUPLE) {
+      return null;
+    }
+    final List<Ast.Exp> args = ((Ast.Tuple) apply.arg).args;
+    return args.size() == 2 && isHashable(typeMap.getType(args.get(0)))
+        ? args
+        : null;
+  }
+
+  /** Adds the conjuncts of a boolean expression to a list. */
+  private static void flattenAnd(Ast.Exp exp, List<Ast.Exp> conjuncts) {
+    if (exp.op == Op.ANDALSO) {
+      final Ast.InfixCall infixCall = (Ast.InfixCall) exp;
+      flattenAnd(infixCall.a0, conjuncts);
+      flattenAnd(infixCall.a1, conjuncts);
+    } else {
+      conjuncts.add(exp);
+    }
+  }
+
+  /** Adds to {@code names} the names of all variables that an expression
+   * may reference. Returns false if the expression contains a construct
+   * that this method does not handle, in which case it may reference any
+   * variable.
+   *
+   * <p>The result may contain names that are bound within the
+   * expression, such as the parameters of a {@code fn}; for our purposes,
+   * a few too many names is harmless. */
+  private static boolean refs(Ast.Exp exp, Set<String> names) {
+    switch (exp.op) {
+    case BOOL_LITERAL:
+    case CHAR_LITERAL:
+    case INT_LITERAL:
+    case REAL_LITERAL:
+    case STRING_LITERAL:
+    case UNIT_LITERAL:
+    case RECORD_SELECTOR:
+      return true;
+    case ID:
+      names.add(((Ast.Id) exp).name);
+      return true;
+    case ANNOTATED_EXP:
+      return refs(((Ast.AnnotatedExp) exp).e, names);
+    case APPLY:
+      final Ast.Apply apply = (Ast.Apply) exp;
+      return refs(apply.fn, names) && refs(apply.arg, names);
+    case ANDALSO:
+    case ORELSE:
+    case CONS:
+      final Ast.InfixCall infixCall = (Ast.InfixCall) exp;
+      return refs(infixCall.a0, names) && refs(infixCall.a1, names);
+    case IF:
+      final Ast.If if_ = (Ast.If) exp;
+      return refs(if_.condition, names)
+          && refs(if_.ifTrue, names)
+          && refs(if_.ifFalse, names);
+    case FN:
+      return ((Ast.Fn) exp).matchList.stream()
+          .allMatch(match -> refs(match.e, names));
+    case CASE:
+      final Ast.Case case_ = (Ast.Case) exp;
+      return refs(case_.e, names)
+          && case_.matchList.stream().allMatch(match -> refs(match.e, names));
+    case TUPLE:
+      return ((Ast.Tuple) exp).args.stream()
+          .allMatch(arg -> refs(arg, names));
+    case LIST:
+      return ((Ast.List) exp).args.stream()
+          .allMatch(arg -> refs(arg, names));
+    case RECORD:
+      return ((Ast.Record) exp).args.values().stream()
+          .allMatch(arg -> refs(arg, names));
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether an expression is suitable as the key of a hash join
+   * (composed of variables, literals, field references, tuples and records,
+   * so its evaluation never fails) and if so, adds the variables it
+   * references to {@code names}. */
+  private static boolean keyRefs(Ast.Exp exp, Set<String> names) {
+    switch (exp.op) {
+    case BOOL_LITERAL:
+    case CHAR_LITERAL:
+    case INT_LITERAL:
+    case STRING_LITERAL:
+    case UNIT_LITERAL:
+      return true;
+    case ID:
+      names.add(((Ast.Id) exp).name);
+      return true;
+    case APPLY:
+      final Ast.Apply apply = (Ast.Apply) exp;
+      return apply.fn.op == Op.RECORD_SELECTOR
+          && keyRefs(apply.arg, names);
+    case TUPLE:
+      return ((Ast.Tuple) exp).args.stream()
+          .allMatch(arg -> keyRefs(arg, names));
+    case RECORD:
+      return ((Ast.Record) exp).args.values().stream()
+          .allMatch(arg -> keyRefs(arg, names));
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether a boolean expression can be evaluated without failing,
+   * and if so, adds the variables it references to {@code names}.
+   *
+   * <p>Such an expression is a comparison of expressions that are suitable
+   * as hash keys (see {@link #keyRefs}), or a combination of such
+   * expressions using {@code andalso}, {@code orelse} and {@code not}. */
+  private boolean cannotFail(Context cx, Ast.Exp exp, Set<String> names) {
+    switch (exp.op) {
+    case ANDALSO:
+    case ORELSE:
+      final Ast.InfixCall infixCall = (Ast.InfixCall) exp;
+      return cannotFail(cx, infixCall.a0, names)
+          && cannotFail(cx, infixCall.a1, names);
+    case APPLY:
+      final Ast.Apply apply = (Ast.Apply) exp;
+      final BuiltIn builtIn = builtIn(cx.env, apply.fn);
+      if (builtIn == null) {
+        return false;
+      }
+      switch (builtIn) {
+      case NOT:
+        return cannotFail(cx, apply.arg, names);
+      case OP_EQ:
+      case OP_NE:
+      case OP_LT:
+      case OP_GT:
+      case OP_LE:
+      case OP_GE:
+        return apply.arg.op == Op.TUPLE
+            && ((Ast.Tuple) apply.arg).args.stream()
+                .allMatch(arg -> keyRefs(arg, names));
+      default:
+        return false;
+      }
+    default:
+      return keyRefs(exp, names);
+    }
+  }
+
+  /** Returns whether values of a type can be compared using
+   * {@link Object#equals} and {@link Object#hashCode}, with the same
+   * result as the {@code =} operator. */
+  private static boolean isHashable(Type type) {
+    switch (type.op()) {
+    case ID:
+      return type != PrimitiveType.REAL;
+    case LIST:
+      return isHashable(((ListType) type).elementType);
+    case TUPLE_TYPE:
+      return ((TupleType) type).argTypes.stream()
+          .allMatch(Compiler::isHashable);
+    case RECORD_TYPE:
+      return ((RecordType) type).argNameTypes.values().stream()
+          .allMatch(Compiler::isHashable);
+    default:
+      return false;
+    }
+  }
+
+  /** Compiles the key of a hash join; a tuple if there is more than one
+   * expression. */
+  private Code compileKey(Context cx, List<Ast.Exp> exps) {
+    if (exps.size() == 1) {
+      return compile(cx, exps.get(0));
+    }
+    final List<Code> codes = new ArrayList<>();
+    for (Ast.Exp exp : exps) {
+      codes.add(compile(cx, exp));
+    }
+    return Codes.tuple(codes);
+  }
+
+  /** Creates a factory for the {@link Codes.RowSink} that implements the
+   * steps of a {@code from} expression.
+   *
+   * @param cx0 Context in which the {@code from} expression is evaluated
+   * @param cx Context in which each row is seen by the first step
+   * @param bindings Variables bound in each row
+   * @param steps Steps
+   * @param yieldExp Expression that generates the output of each row
+   */
+  private Supplier<Codes.RowSink> createRowSinkFactory(Context cx0,
+      Context cx, ImmutableList<Binding> bindings, List<Ast.FromStep> steps,
       Ast.Exp yieldExp) {
-    final Environment env = env0.bindAll(bindings);
     if (steps.isEmpty()) {
-      final Code yieldCode = compile(env, yieldExp);
+      final Code yieldCode = compile(cx, yieldExp);
       return () -> Codes.yieldRowSink(yieldCode);
     }
     final Ast.FromStep firstStep = steps.get(0);
@@ -236,33 +737,76 @@ public class Compiler {
         (name, ast) -> Binding.of(name, typeMap.getType(ast)),
         outBindingBuilder::add);
     final ImmutableList<Binding> outBindings = outBindingBuilder.build();
+    final ImmutableList<String> names = bindingNames(bindings);
+    final ImmutableList<Code> inCodes = bindings.stream()
+        .map(b -> compile(cx, ast.id(Pos.ZERO, b.name)))
+        .collect(toImmutableList());
+
+    // A "where" or "take" step passes each row to the next step in the same
+    // environment; "order" and "group" create a new environment that has
+    // a mutable slot for each variable.
+    final Context nextCx = firstStep.op == Op.WHERE || firstStep.op == Op.TAKE
+        ? cx
+        : cx0.bindSlots(outBindings);
     final Supplier<Codes.RowSink> nextFactory =
-        createRowSinkFactory(env, outBindings,
+        createRowSinkFactory(cx0, nextCx, outBindings,
             steps.subList(1, steps.size()), yieldExp);
     switch (firstStep.op) {
     case WHERE:
       final Ast.Where where = (Ast.Where) firstStep;
-      final Code filterCode = compile(env, where.exp);
+      final Code filterCode = compile(cx, where.exp);
       return () -> Codes.whereRowSink(filterCode, nextFactory.get());
 
+    case TAKE:
+      // The number of rows is evaluated in the context of the "from"
+      // expression.
+      final Ast.Take take = (Ast.Take) firstStep;
+      final Code countCode = compile(cx0, take.exp);
+      return () -> Codes.takeRowSink(countCode, nextFactory.get());
+
     case ORDER:
+      // Sort keys are evaluated in the same environment as the next step.
       final Ast.Order order = (Ast.Order) firstStep;
-      final ImmutableList<Pair<Code, Boolean>> codes =
-          order.orderItems.stream()
-              .map(i -> Pair.of(compile(env, i.exp), i.direction == DESC))
-              .collect(toImmutableList());
-      return () -> Codes.orderRowSink(codes, bindings, nextFactory.get());
+      final ImmutableList.Builder<Pair<Code, Comparator<Object>>> codesB =
+          ImmutableList.builder();
+      for (Ast.OrderItem orderItem : order.orderItems) {
+        final Comparator<Object> comparator =
+            Codes.comparator(typeMap.getType(orderItem.exp));
+        codesB.add(
+            Pair.of(compile(nextCx, orderItem.exp),
+                orderItem.direction == DESC ? comparator.reversed()
+                    : comparator));
+      }
+      final ImmutableList<Pair<Code, Comparator<Object>>> codes =
+          codesB.build();
+      // If the next step is "take", the sink only keeps as many rows as
+      // that step will pass on; see RowSink.limit().
+      return () -> Codes.orderRowSink(codes, names, inCodes,
+          nextFactory.get());
 
     case GROUP:
       final Ast.Group group = (Ast.Group) firstStep;
       final ImmutableList.Builder<Code> groupCodesB = ImmutableList.builder();
       for (Pair<Ast.Id, Ast.Exp> pair : group.groupExps) {
-        groupCodesB.add(compile(env, pair.right));
+        groupCodesB.add(compile(cx, pair.right));
       }
-      final ImmutableList<String> names = bindingNames(bindings);
-      final ImmutableList.Builder<Applicable> aggregateCodesB =
-          ImmutableList.builder();
+      // Aggregate functions are evaluated in the context of the "from"
+      // expression. Built-in aggregate functions such as "sum" are computed
+      // as each row arrives, their arguments evaluated in the environment of
+      // the row. Other aggregate functions need the rows of their group;
+      // their arguments are evaluated once per row in the group, in an
+      // environment that has one mutable slot for each variable.
+      final Context aggregateCx = cx0.bindSlots(bindings);
+      final ImmutableList.Builder<Supplier<Codes.Accumulator>>
+          accumulatorFactoriesB = ImmutableList.builder();
+      boolean buffer = false;
       for (Ast.Aggregate aggregate : group.aggregates) {
+        final Supplier<Codes.Accumulator> accumulatorFactory =
+            compileAccumulator(cx, aggregate);
+        if (accumulatorFactory != null) {
+          accumulatorFactoriesB.add(accumulatorFactory);
+          continue;
+        }
         final Code argumentCode;
         final Type argumentType;
         if (aggregate.argument == null) {
@@ -273,38 +817,81 @@ public class Compiler {
           argumentCode = null;
         } else {
           argumentType = typeMap.getType(aggregate.argument);
-          argumentCode = compile(env, aggregate.argument);
+          argumentCode = compile(aggregateCx, aggregate.argument);
         }
         final Applicable aggregateApplicable =
-            compileApplicable(env, aggregate.aggregate,
+            compileApplicable(cx0, aggregate.aggregate,
                 typeMap.typeSystem.listType(argumentType));
         final Code aggregateCode;
         if (aggregateApplicable == null) {
-          aggregateCode = compile(env, aggregate.aggregate);
+          aggregateCode = compile(cx0, aggregate.aggregate);
         } else {
           aggregateCode = aggregateApplicable.asCode();
         }
-        aggregateCodesB.add(
-            Codes.aggregate(env, aggregateCode, names, argumentCode));
+        accumulatorFactoriesB.add(
+            Codes.bufferingAccumulator(
+                Codes.aggregate(cx0.env, aggregateCode, names, argumentCode)));
+        buffer = true;
       }
       final ImmutableList<Code> groupCodes = groupCodesB.build();
       final Code keyCode = Codes.tuple(groupCodes);
-      final ImmutableList<Applicable> aggregateCodes = aggregateCodesB.build();
+      final ImmutableList<Supplier<Codes.Accumulator>> accumulatorFactories =
+          accumulatorFactoriesB.build();
+      final boolean buffer2 = buffer;
       final ImmutableList<String> outNames = bindingNames(outBindings);
-      return () -> Codes.groupRowSink(keyCode, aggregateCodes, names,
-          outNames, nextFactory.get());
+      return () -> Codes.groupRowSink(keyCode, accumulatorFactories, buffer2,
+          inCodes, outNames, nextFactory.get());
 
     default:
       throw new AssertionError("unknown step type " + firstStep.op);
     }
   }
 
+  /** Returns a factory for accumulators that compute an aggregate function
+   * of a {@code group} step one row at a time, or null if the function is
+   * not a built-in that can be computed that way.
+   *
+   * <p>{@code count} does not need its argument; {@code sum}, {@code min}
+   * and {@code max} need an argument, evaluated in {@code cx}, the context
+   * of each row. */
+  private @Nullable Supplier<Codes.Accumulator> compileAccumulator(
+      Context cx, Ast.Aggregate aggregate) {
+    final BuiltIn builtIn = builtIn(cx.env, aggregate.aggregate);
+    if (builtIn == null) {
+      return null;
+    }
+    if (aggregate.argument == null) {
+      return builtIn == BuiltIn.RELATIONAL_COUNT
+          ? Codes.accumulator(builtIn, PrimitiveType.UNIT, null)
+          : null;
+    }
+    final Type argumentType = typeMap.getType(aggregate.argument);
+    if (Codes.accumulator(builtIn, argumentType, null) == null) {
+      return null;
+    }
+    final Code argumentCode = compile(cx, aggregate.argument);
+    return Codes.accumulator(builtIn, argumentType, argumentCode);
+  }
+
   private ImmutableList<String> bindingNames(List<Binding> bindings) {
     //noinspection UnstableApiUsage
     return bindings.stream().map(b -> b.name)
         .collect(ImmutableList.toImmutableList());
   }
 
+  /** Returns a binding for each variable in a pattern, in the order that
+   * the pattern assigns them to slots. */
+  private List<Binding> patBindings(Ast.Pat pat) {
+    final List<Binding> bindings = new ArrayList<>();
+    pat.visit(p -> {
+      if (p instanceof Ast.IdPat) {
+        final Ast.IdPat idPat = (Ast.IdPat) p;
+        bindings.add(Binding.of(idPat.name, typeMap.getType(idPat)));
+      }
+    });
+    return bindings;
+  }
+
   private void assignSelector(Ast.Apply apply) {
     if (apply.fn instanceof Ast.RecordSelector) {
       final Ast.RecordSelector selector = (Ast.RecordSelector) apply.fn;
@@ -320,20 +907,163 @@ public class Compiler {
     }
   }
 
+  /** If an expression is a call to a curried built-in function that supplies
+   * all of its arguments, such as {@code List.foldl f init list}, returns
+   * code that passes the arguments directly, without creating partial
+   * applications; otherwise returns null. */
+  private @Nullable Code compileSaturated(Context cx, Ast.Apply apply) {
+    if (apply.fn.op != Op.APPLY) {
+      final BuiltIn builtIn = builtIn(cx.env, apply.fn);
+      if (builtIn == BuiltIn.LIST_PAR_TABULATE
+          && apply.arg.op == Op.TUPLE
+          && isSideEffectFree(cx, ((Ast.Tuple) apply.arg).args.get(1))) {
+        return Codes.apply(Codes.PARALLEL_VALUES.get(builtIn),
+            compile(cx, apply.arg));
+      }
+      return builtIn == BuiltIn.LIST_LENGTH
+          ? compileFused(cx, BuiltIn.LIST_LENGTH, ImmutableList.of(),
+              apply.arg)
+          : null;
+    }
+    final Ast.Apply apply1 = (Ast.Apply) apply.fn;
+    final BuiltIn builtIn1 = builtIn(cx.env, apply1.fn);
+    if (builtIn1 != null) {
+      switch (builtIn1) {
+      case LIST_REDUCE:
+      case RELATIONAL_REDUCE:
+        // A partial application, such as the aggregate function
+        // "reduce f 0".
+        return isSideEffectFree(cx, apply1.arg)
+            ? Codes.apply2(Codes.PARALLEL_VALUES2.get(builtIn1),
+                compile(cx, apply1.arg), compile(cx, apply.arg))
+            : null;
+      }
+      final Applicable2 fnValue = Codes.BUILT_IN_VALUES2.get(builtIn1);
+      if (fnValue == null) {
+        return null;
+      }
+      switch (builtIn1) {
+      case LIST_PAR_MAP:
+      case LIST_PAR_FILTER:
+        if (isSideEffectFree(cx, apply1.arg)) {
+          return Codes.apply2(Codes.PARALLEL_VALUES2.get(builtIn1),
+              compile(cx, apply1.arg), compile(cx, apply.arg));
+        }
+        break;
+      case LIST_MAP:
+      case LIST_FILTER:
+      case LIST_EXISTS:
+      case LIST_ALL:
+        final Code fusedCode = compileFused(cx, builtIn1,
+            ImmutableList.of(apply1.arg), apply.arg);
+        if (fusedCode != null) {
+          return fusedCode;
+        }
+      }
+      return Codes.apply2(fnValue, compile(cx, apply1.arg),
+          compile(cx, apply.arg));
+    }
+    if (apply1.fn.op != Op.APPLY) {
+      return null;
+    }
+    final Ast.Apply apply2 = (Ast.Apply) apply1.fn;
+    final BuiltIn builtIn2 = builtIn(cx.env, apply2.fn);
+    final Applicable3 fnValue =
+        builtIn2 == null ? null : Codes.BUILT_IN_VALUES3.get(builtIn2);
+    if (fnValue == null) {
+      return null;
+    }
+    final Applicable3 parallelValue = Codes.PARALLEL_VALUES3.get(builtIn2);
+    if (parallelValue != null && isSideEffectFree(cx, apply2.arg)) {
+      return Codes.apply3(parallelValue, compile(cx, apply2.arg),
+          compile(cx, apply1.arg), compile(cx, apply.arg));
+    }
+    if (builtIn2 == BuiltIn.LIST_FOLDL) {
+      final Code fusedCode = compileFused(cx, builtIn2,
+          ImmutableList.of(apply2.arg, apply1.arg), apply.arg);
+      if (fusedCode != null) {
+        return fusedCode;
+      }
+    }
+    return Codes.apply3(fnValue, compile(cx, apply2.arg),
+        compile(cx, apply1.arg), compile(cx, apply.arg));
+  }
+
+  /** Compiles a call to a built-in function that consumes a list, such as
+   * {@code List.foldl f init list}, whose list argument is a chain of calls
+   * to {@code List.map} and {@code List.filter}, such as
+   * {@code List.map g (List.filter p xs)}, into code that makes one pass
+   * over {@code xs} and does not create intermediate lists. Returns null if
+   * the list argument is not such a call.
+   *
+   * <p>The functions are applied in a different order than if each call
+   * created its list, and if the terminal function stops early (as
+   * {@code List.exists} does when it finds a match) some are not applied
+   * at all. The stage functions may be user code that raises an error, so
+   * we only fuse if every stage function is total (see {@link #isTotal});
+   * then the result is the same.
+   *
+   * @param terminal Built-in function that consumes the list
+   * @param args Arguments to the built-in function before the list
+   * @param listExp List argument
+   */
+  private @Nullable Code compileFused(Context cx, BuiltIn terminal,
+      List<Ast.Exp> args, Ast.Exp listExp) {
+    if (listStage(cx, listExp) == null) {
+      return null;
+    }
+    for (Ast.Exp e = listExp; listStage(cx, e) != null;
+         e = ((Ast.Apply) e).arg) {
+      if (!isTotal(cx, ((Ast.Apply) ((Ast.Apply) e).fn).arg)) {
+        return null;
+      }
+    }
+    final List<Code> argCodes = new ArrayList<>();
+    for (Ast.Exp arg : args) {
+      argCodes.add(compile(cx, arg));
+    }
+    final ImmutableList.Builder<Pair<BuiltIn, Code>> stages =
+        ImmutableList.builder();
+    Ast.Exp e = listExp;
+    for (BuiltIn stage; (stage = listStage(cx, e)) != null;) {
+      final Ast.Apply apply = (Ast.Apply) e;
+      stages.add(Pair.of(stage, compile(cx, ((Ast.Apply) apply.fn).arg)));
+      e = apply.arg;
+    }
+    return Codes.fused(terminal, argCodes, stages.build(), compile(cx, e));
+  }
+
+  /** If an expression is a call to {@code List.map} or {@code List.filter}
+   * with both of its arguments, returns which; otherwise null. */
+  private static @Nullable BuiltIn listStage(Context cx, Ast.Exp exp) {
+    if (exp.op != Op.APPLY || ((Ast.Apply) exp).fn.op != Op.APPLY) {
+      return null;
+    }
+    final Ast.Apply apply = (Ast.Apply) ((Ast.Apply) exp).fn;
+    final BuiltIn builtIn = builtIn(cx.env, apply.fn);
+    return builtIn == BuiltIn.LIST_MAP || builtIn == BuiltIn.LIST_FILTER
+        ? builtIn
+        : null;
+  }
+
   /** Compiles a function value to an {@link Applicable}, if possible, or
    * returns null. */
-  private Applicable compileApplicable(Environment env, Ast.Exp fn,
+  private Applicable compileApplicable(Context cx, Ast.Exp fn,
       Type argType) {
+    if (builtIn(cx.env, fn) == BuiltIn.SYS_PROFILE) {
+      // The profiles belong to the session, not to the built-in value.
+      return Codes.sysProfile(session.profiles);
+    }
     if (fn instanceof Ast.Id) {
-      final Binding binding = env.getOpt(((Ast.Id) fn).name);
+      final Binding binding = cx.env.getOpt(((Ast.Id) fn).name);
       if (binding != null
           && binding.value instanceof Macro) {
-        final Ast.Exp e = ((Macro) binding.value).expand(env, argType);
+        final Ast.Exp e = ((Macro) binding.value).expand(cx.env, argType);
         switch (e.op) {
         case WRAPPED_APPLICABLE:
           return ((Ast.ApplicableExp) e).applicable;
         }
-        final Code code = compile(env, e);
+        final Code code = compile(cx, e);
         return (evalEnv, argValue) -> code.eval(evalEnv);
       }
       if (binding != null
@@ -341,7 +1071,7 @@ public class Compiler {
         return (Applicable) binding.value;
       }
     }
-    final Code fnCode = compile(env, fn);
+    final Code fnCode = compile(cx, fn);
     if (fnCode.isConstant()) {
       return (Applicable) fnCode.eval(EMPTY_ENV);
     } else {
@@ -349,24 +1079,342 @@ public class Compiler {
     }
   }
 
-  private Code compileAggregate(Environment env, Ast.Aggregate aggregate) {
+  /** If an expression is a reference to a built-in function, such as
+   * {@code op +} or {@code String.size}, returns the built-in; otherwise
+   * returns null. */
+  static @Nullable BuiltIn builtIn(Environment env, Ast.Exp fn) {
+    if (fn.op != Op.ID) {
+      return null;
+    }
+    final String name = ((Ast.Id) fn).name;
+    final BuiltIn builtIn = BuiltIn.BY_ML_NAME.get(name);
+    final Binding binding = env.getOpt(name);
+    if (builtIn == null
+        || binding == null
+        || binding.value != Codes.BUILT_IN_VALUES.get(builtIn)) {
+      // Not a built-in, or the built-in has been shadowed
+      return null;
+    }
+    return builtIn;
+  }
+
+  /** Evaluates a Code at compile time. The Code must not reference any
+   * variables.
+   *
+   * <p>Built-in functions have no side effects, so this is valid if the
+   * Code applies a built-in function to constant arguments. If evaluation
+   * fails (say with division by zero) returns the Code, so that the error
+   * happens at run time, if at all. */
+  private static Code fold(Code code) {
+    try {
+      return Codes.constant(code.eval(EMPTY_ENV));
+    } catch (RuntimeException e) {
+      return code;
+    }
+  }
+
+  /** Folds a Code that creates a tuple or list if all of its elements are
+   * constant. */
+  private static Code foldIfConstant(Code code, List<Code> codes) {
+    for (Code c : codes) {
+      if (!c.isConstant()) {
+        return code;
+      }
+    }
+    return fold(code);
+  }
+
+  /** Compiles the application of a function that has one arm, such as
+   * {@code (fn x => x + 1) y} or {@code case y of x => x + 1}, as if it were
+   * {@code let val x = y in x + 1 end}. No closure is created, and the body
+   * is compiled in the current scope. */
+  private Code compileBeta(Context cx, Ast.Match match, Ast.Exp arg,
+      boolean tail) {
+    final Ast.Pat pat = expandRecordPattern(match.pat);
+    return compileLet(cx,
+        ast.valDecl(match.pos, ast.valBind(match.pos, false, pat, arg)),
+        match.e, tail);
+  }
+
+  /** Compiles a "case" that has more than one arm.
+   *
+   * <p>The variables of the patterns are bound to slots in the current frame,
+   * so evaluating the "case" does not create a closure. The arms share the
+   * same slots, because only one arm is evaluated. */
+  private Code compileCase(Context cx, Ast.Case case_, boolean tail) {
+    if (cx.frame == null) {
+      // As in compileLet, create a frame to hold the variables.
+      final Context cx2 = cx.withFrame();
+      final Code code = compileCase(cx2, case_, tail);
+      return Codes.frame(cx2.frame.size, code);
+    }
+    final Code argCode = compile(cx, case_.e);
+    final int offset = cx.frame.size;
+    int size = offset;
+    final ImmutableList.Builder<Pair<Ast.Pat, Code>> patCodes =
+        ImmutableList.builder();
+    for (Ast.Match match : case_.matchList) {
+      final Ast.Pat pat = expandRecordPattern(match.pat);
+      cx.frame.size = offset;
+      final List<Binding> bindings = cx.allocateSlots(patBindings(pat));
+      patCodes.add(Pair.of(pat, compile(cx.bindAll(bindings), match.e, tail)));
+      size = Math.max(size, cx.frame.size);
+    }
+    cx.frame.size = size;
+    return Codes.match(typeMap.typeSystem, argCode, patCodes.build(), offset);
+  }
+
+  private Code compileAggregate(Context cx, Ast.Aggregate aggregate) {
     throw new UnsupportedOperationException(); // TODO
   }
 
-  private Code compileLet(Environment env, List<Ast.Decl> decls, Ast.Exp e) {
+  private Code compileLet(Context cx, List<Ast.Decl> decls, Ast.Exp e,
+      boolean tail) {
     final Ast.LetExp letExp = flattenLet(decls, e);
-    return compileLet(env, Iterables.getOnlyElement(letExp.decls), letExp.e);
+    return compileLet(cx, Iterables.getOnlyElement(letExp.decls), letExp.e,
+        tail);
   }
 
-  private Code compileLet(Environment env, Ast.Decl decl, Ast.Exp e) {
+  private Code compileLet(Context cx, Ast.Decl decl, Ast.Exp e,
+      boolean tail) {
+    if (cx.frame == null) {
+      // We are not inside a function, or we are inside a "from" step. Create
+      // a frame that will hold the variables of this "let" and of any "let"
+      // nested inside it.
+      final Context cx2 = cx.withFrame();
+      final Code code = compileLet(cx2, decl, e, tail);
+      return Codes.frame(cx2.frame.size, code);
+    }
     final List<Code> varCodes = new ArrayList<>();
     final List<Binding> bindings = new ArrayList<>();
-    compileDecl(env, decl, varCodes, bindings, null);
-    Environment env2 = env.bindAll(bindings);
-    final Code resultCode = compile(env2, e);
+    compileDecl(cx, decl, varCodes, bindings, null);
+    // Find out which variables the body uses. (The declaration may use its
+    // own variables, if it is recursive, but that does not count.)
+    final List<Slot> slots = new ArrayList<>();
+    for (Binding binding : bindings) {
+      if (binding.value instanceof Slot) {
+        final Slot slot = (Slot) binding.value;
+        slot.used = false;
+        slots.add(slot);
+      }
+    }
+    final Code resultCode = compile(cx.bindAll(bindings), e, tail);
+    if (isPure(decl) && slots.stream().noneMatch(slot -> slot.used)) {
+      // The body does not use any of the variables, and evaluating the
+      // declaration has no effect. Skip it.
+      return resultCode;
+    }
     return Codes.let(varCodes, resultCode);
   }
 
+  /** Returns whether evaluating a declaration never fails and has no
+   * effects. True if its patterns cannot fail to match and its expressions
+   * are values, such as literals, variables or functions. */
+  private boolean isPure(Ast.Decl decl) {
+    switch (decl.op) {
+    case VAL_DECL:
+      for (Ast.ValBind valBind : ((Ast.ValDecl) decl).valBinds) {
+        if (!isIrrefutable(valBind.pat) || !isValue(valBind.e)) {
+          return false;
+        }
+      }
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether an expression, and the function that it evaluates to,
+   * certainly have no side effects. If so, a parallel built-in function such
+   * as {@code List.parMap} may apply the function to several values at the
+   * same time.
+   *
+   * <p>The only built-in function with a side effect is {@code Sys.profile},
+   * but the compiler cannot see the body of a function that is a variable
+   * (whether defined outside the expression or a parameter of a {@code fn}
+   * within it), so such a variable counts as having side effects. */
+  private boolean isSideEffectFree(Context cx, Ast.Exp e) {
+    return isSideEffectFree(cx, e, true);
+  }
+
+  /** Returns whether an expression, and the function that it evaluates to,
+   * certainly have no side effects and cannot fail. If so, the function may
+   * be applied in a different order, or not at all, without changing the
+   * result of the program.
+   *
+   * <p>Such an expression may only call the built-in functions in
+   * {@link #CANNOT_FAIL} and functions written as {@code fn} within the
+   * expression, and its patterns must match every value. */
+  private boolean isTotal(Context cx, Ast.Exp e) {
+    return isSideEffectFree(cx, e, false);
+  }
+
+  /** Built-in functions that cannot fail if their arguments do not fail.
+   * ({@code div}, {@code hd} and {@code List.nth}, for example, can fail.)
+   * Functions that apply a function argument, such as {@code List.map},
+   * are included because their argument is checked separately. */
+  private static final ImmutableSet<BuiltIn> CANNOT_FAIL =
+      Sets.immutableEnumSet(BuiltIn.TRUE, BuiltIn.FALSE, BuiltIn.NOT,
+          BuiltIn.ABS, BuiltIn.OP_CARET, BuiltIn.OP_CONS, BuiltIn.OP_EQ,
+          BuiltIn.OP_NE, BuiltIn.OP_LT, BuiltIn.OP_GT, BuiltIn.OP_LE,
+          BuiltIn.OP_GE, BuiltIn.OP_MINUS, BuiltIn.OP_NEGATE,
+          BuiltIn.OP_PLUS, BuiltIn.OP_TIMES, BuiltIn.STRING_SIZE,
+          BuiltIn.STRING_CONCAT, BuiltIn.STRING_STR, BuiltIn.LIST_NIL,
+          BuiltIn.LIST_NULL, BuiltIn.LIST_LENGTH, BuiltIn.LIST_AT,
+          BuiltIn.LIST_REV, BuiltIn.LIST_MAP, BuiltIn.LIST_FILTER,
+          BuiltIn.LIST_EXISTS, BuiltIn.LIST_ALL);
+
+  /** Implements {@link #isSideEffectFree(Context, Ast.Exp)} and, if
+   * {@code mayFail} is false, {@link #isTotal}. */
+  private boolean isSideEffectFree(Context cx, Ast.Exp e,
+      boolean mayFail) {
+    switch (e.op) {
+    case BOOL_LITERAL:
+    case CHAR_LITERAL:
+    case INT_LITERAL:
+    case REAL_LITERAL:
+    case STRING_LITERAL:
+    case UNIT_LITERAL:
+    case RECORD_SELECTOR:
+      return true;
+    case ID:
+      final BuiltIn builtIn = builtIn(cx.env, e);
+      if (builtIn != null) {
+        return mayFail
+            ? builtIn != BuiltIn.SYS_PROFILE
+            : CANNOT_FAIL.contains(builtIn);
+      }
+      final Binding binding = cx.env.getOpt(((Ast.Id) e).name);
+      if (binding != null) {
+        return isData(binding.type);
+      }
+      // The variable is defined within the expression. If its value is
+      // data, using it cannot fail, and if it is defined by "let" we check
+      // its definition. But if it is a function, it may be a parameter of a
+      // "fn" or bound by a pattern, and we cannot see its body, so calling
+      // it may fail or have side effects.
+      return isData(typeMap.getType(e));
+    case ANNOTATED_EXP:
+      return isSideEffectFree(cx, ((Ast.AnnotatedExp) e).e, mayFail);
+    case IF:
+      final Ast.If if_ = (Ast.If) e;
+      return isSideEffectFree(cx, if_.condition, mayFail)
+          && isSideEffectFree(cx, if_.ifTrue, mayFail)
+          && isSideEffectFree(cx, if_.ifFalse, mayFail);
+    case LET:
+      final Ast.LetExp let = (Ast.LetExp) e;
+      for (Ast.Decl decl : let.decls) {
+        if (decl.op != Op.VAL_DECL) {
+          return false;
+        }
+        for (Ast.ValBind valBind : ((Ast.ValDecl) decl).valBinds) {
+          if (!isSideEffectFree(cx, valBind.e, mayFail)
+              || !mayFail && !isIrrefutable(valBind.pat)) {
+            return false;
+          }
+        }
+      }
+      return isSideEffectFree(cx, let.e, mayFail);
+    case FN:
+      final List<Ast.Match> fnMatches = ((Ast.Fn) e).matchList;
+      return (mayFail || isIrrefutable(Iterables.getLast(fnMatches).pat))
+          && fnMatches.stream()
+              .allMatch(match -> isSideEffectFree(cx, match.e, mayFail));
+    case CASE:
+      final Ast.Case case_ = (Ast.Case) e;
+      return (mayFail || isIrrefutable(Iterables.getLast(case_.matchList).pat))
+          && isSideEffectFree(cx, case_.e, mayFail)
+          && case_.matchList.stream()
+              .allMatch(match -> isSideEffectFree(cx, match.e, mayFail));
+    case APPLY:
+      final Ast.Apply apply = (Ast.Apply) e;
+      return isSideEffectFree(cx, apply.fn, mayFail)
+          && isSideEffectFree(cx, apply.arg, mayFail);
+    case ANDALSO:
+    case ORELSE:
+    case CONS:
+      final Ast.InfixCall infixCall = (Ast.InfixCall) e;
+      return isSideEffectFree(cx, infixCall.a0, mayFail)
+          && isSideEffectFree(cx, infixCall.a1, mayFail);
+    case TUPLE:
+      return ((Ast.Tuple) e).args.stream()
+          .allMatch(arg -> isSideEffectFree(cx, arg, mayFail));
+    case LIST:
+      return ((Ast.List) e).args.stream()
+          .allMatch(arg -> isSideEffectFree(cx, arg, mayFail));
+    case RECORD:
+      return ((Ast.Record) e).args.values().stream()
+          .allMatch(arg -> isSideEffectFree(cx, arg, mayFail));
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether values of a type certainly do not contain
+   * functions. */
+  private static boolean isData(Type type) {
+    switch (type.op()) {
+    case ID:
+      return true; // primitive type, such as "int"
+    case LIST:
+      return isData(((ListType) type).elementType);
+    case TUPLE_TYPE:
+      return ((TupleType) type).argTypes.stream().allMatch(Compiler::isData);
+    case RECORD_TYPE:
+      return ((RecordType) type).argNameTypes.values().stream()
+          .allMatch(Compiler::isData);
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether a pattern matches every value of its type. */
+  private boolean isIrrefutable(Ast.Pat pat) {
+    switch (pat.op) {
+    case WILDCARD_PAT:
+      return true;
+    case ID_PAT:
+      // Not irrefutable if it is a constructor, such as "NONE".
+      return expandRecordPattern(pat).op == Op.ID_PAT;
+    case ANNOTATED_PAT:
+      return isIrrefutable(((Ast.AnnotatedPat) pat).pat);
+    case TUPLE_PAT:
+      return ((Ast.TuplePat) pat).args.stream().allMatch(this::isIrrefutable);
+    case RECORD_PAT:
+      return ((Ast.RecordPat) pat).args.values().stream()
+          .allMatch(this::isIrrefutable);
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether an expression is a value; that is, whether its
+   * evaluation never fails and has no effects. */
+  private static boolean isValue(Ast.Exp e) {
+    switch (e.op) {
+    case BOOL_LITERAL:
+    case CHAR_LITERAL:
+    case INT_LITERAL:
+    case REAL_LITERAL:
+    case STRING_LITERAL:
+    case UNIT_LITERAL:
+    case ID:
+    case FN:
+      return true;
+    case ANNOTATED_EXP:
+      return isValue(((Ast.AnnotatedExp) e).e);
+    case TUPLE:
+      return ((Ast.Tuple) e).args.stream().allMatch(Compiler::isValue);
+    case LIST:
+      return ((Ast.List) e).args.stream().allMatch(Compiler::isValue);
+    case RECORD:
+      return ((Ast.Record) e).args.values().stream()
+          .allMatch(Compiler::isValue);
+    default:
+      return false;
+    }
+  }
+
   private Ast.LetExp flattenLet(List<Ast.Decl> decls, Ast.Exp e) {
     if (decls.size() == 1) {
       return ast.let(e.pos, decls, e);
@@ -376,15 +1424,21 @@ public class Compiler {
     }
   }
 
-  private void compileDecl(Environment env, Ast.Decl decl, List<Code> varCodes,
+  /** Compiles a declaration.
+   *
+   * <p>Inside a "let", each value binding allocates slots in the current
+   * frame for the variables of its pattern, adds a binding to a {@link Slot}
+   * to {@code bindings} for each of them, and adds to {@code varCodes} a code
+   * that assigns the slots. */
+  private void compileDecl(Context cx, Ast.Decl decl, List<Code> varCodes,
       List<Binding> bindings, List<Action> actions) {
     switch (decl.op) {
     case VAL_DECL:
-      compileValDecl(env, (Ast.ValDecl) decl, varCodes, bindings, actions);
+      compileValDecl(cx, (Ast.ValDecl) decl, varCodes, bindings, actions);
       break;
     case DATATYPE_DECL:
       final Ast.DatatypeDecl datatypeDecl = (Ast.DatatypeDecl) decl;
-      compileDatatypeDecl(env, datatypeDecl, bindings, actions);
+      compileDatatypeDecl(cx, datatypeDecl, bindings, actions);
       break;
     case FUN_DECL:
       throw new AssertionError("unknown " + decl.op + " [" + decl
@@ -394,7 +1448,7 @@ public class Compiler {
     }
   }
 
-  private void compileValDecl(Environment env, Ast.ValDecl valDecl,
+  private void compileValDecl(Context cx, Ast.ValDecl valDecl,
       List<Code> varCodes, List<Binding> bindings, List<Action> actions) {
     if (valDecl.valBinds.size() > 1) {
       // Transform "let val v1 = e1 and v2 = e2 in e"
@@ -409,32 +1463,19 @@ public class Compiler {
       final Ast.Pat pat = ast.tuplePat(pos, matches.keySet());
       final Ast.Exp e2 = ast.tuple(pos, matches.values());
       valDecl = ast.valDecl(pos, ast.valBind(pos, rec, pat, e2));
-      matches.forEach((key, value) ->
-          bindings.add(
-              Binding.of(((Ast.IdPat) key).name, typeMap.getType(value),
-                  Unit.INSTANCE)));
-    } else {
-      valDecl.valBinds.forEach(valBind ->
-          valBind.pat.visit(pat -> {
-            if (pat instanceof Ast.IdPat) {
-              final Type paramType = typeMap.getType(pat);
-              bindings.add(Binding.of(((Ast.IdPat) pat).name, paramType));
-            }
-          }));
     }
     for (Ast.ValBind valBind : valDecl.valBinds) {
-      compileValBind(env, valBind, varCodes, bindings, actions);
+      compileValBind(cx, valBind, varCodes, bindings, actions);
     }
   }
 
-  private void compileDatatypeDecl(Environment env,
+  private void compileDatatypeDecl(Context cx,
       Ast.DatatypeDecl datatypeDecl, List<Binding> bindings,
       List<Action> actions) {
     for (Ast.DatatypeBind bind : datatypeDecl.binds) {
       final List<Binding> newBindings = new TailList<>(bindings);
-      final Type dataType = typeMap.typeSystem.lookup(bind.name.name);
       for (Ast.TyCon tyCon : bind.tyCons) {
-        compileTyCon(env, dataType, tyCon, bindings);
+        compileTyCon(cx, tyCon, bindings);
       }
       if (actions != null) {
         final List<Binding> immutableBindings =
@@ -447,26 +1488,42 @@ public class Compiler {
     }
   }
 
-  private void compileTyCon(Environment env, Type dataType,
-      Ast.TyCon tyCon, List<Binding> bindings) {
+  private void compileTyCon(Context cx, Ast.TyCon tyCon,
+      List<Binding> bindings) {
     final Type type = Objects.requireNonNull(typeMap.getType(tyCon));
+    final DataType dataType =
+        typeMap.typeSystem.lookupTyCon(tyCon.id.name).left;
     final Object value;
     if (tyCon.type == null) {
-      value = Codes.constant(new ComparableSingletonList<>(tyCon.id.name));
+      value = Codes.constant(Codes.tyCon0(dataType, tyCon.id.name));
     } else {
       value = Codes.tyCon(dataType, tyCon.id.name);
     }
     bindings.add(Binding.of(tyCon.id.name, type, value));
   }
 
-  private Code compileInfix(Environment env, Ast.InfixCall call, Type type) {
-    final Code code0 = compile(env, call.a0);
-    final Code code1 = compile(env, call.a1);
+  private Code compileInfix(Context cx, Ast.InfixCall call, Type type,
+      boolean tail) {
+    final Code code0 = compile(cx, call.a0);
+    // The right operand of "andalso" and "orelse" is in tail position, so
+    // that "p x andalso all p xs" is a loop. The result of a tail call is not
+    // known to be a boolean, so in tail position we use "if".
+    final Code code1 = compile(cx, call.a1, tail);
     switch (call.op) {
     case ANDALSO:
-      return Codes.andAlso(code0, code1);
+      if (code0.isConstant()) {
+        return (Boolean) code0.eval(EMPTY_ENV) ? code1 : code0;
+      }
+      return tail
+          ? Codes.ifThenElse(code0, code1, Codes.constant(false))
+          : Codes.andAlso(code0, code1);
     case ORELSE:
-      return Codes.orElse(code0, code1);
+      if (code0.isConstant()) {
+        return (Boolean) code0.eval(EMPTY_ENV) ? code0 : code1;
+      }
+      return tail
+          ? Codes.ifThenElse(code0, Codes.constant(true), code1)
+          : Codes.orElse(code0, code1);
     default:
       throw new AssertionError("unknown op " + call.op);
     }
@@ -491,31 +1548,59 @@ public class Compiler {
 
   /** Compiles a {@code match} expression.
    *
-   * @param env Compile environment
+   * @param cx Compile context in which the closure is created
+   * @param scope Scope of the closure's body
    * @param matchList List of Match
-   * @return Code for match
+   * @return Code that creates a closure
    */
-  private Code compileMatchList(Environment env,
+  private Code compileMatchList(Context cx, Scope scope,
       List<Ast.Match> matchList) {
+    final Context cx2 = new Context(cx.env, 1, new Frame(), scope);
     @SuppressWarnings("UnstableApiUsage")
     final ImmutableList<Pair<Ast.Pat, Code>> patCodes =
         matchList.stream()
-            .map(match -> compileMatch(env, match))
+            .map(match -> compileMatch(cx2, match))
             .collect(ImmutableList.toImmutableList());
-    return evalEnv -> new Closure(evalEnv, patCodes);
+    return Codes.closure(typeMap.typeSystem,
+        ImmutableList.copyOf(scope.captureCodes), patCodes, cx2.frame.size);
   }
 
-  private Pair<Ast.Pat, Code> compileMatch(Environment env, Ast.Match match) {
-    final Environment[] envHolder = {env};
-    match.pat.visit(pat -> {
-      if (pat instanceof Ast.IdPat) {
-        final Type paramType = typeMap.getType(pat);
-        envHolder[0] = envHolder[0].bind(((Ast.IdPat) pat).name,
-            paramType, Unit.INSTANCE);
+  /** Returns the index, in the captures of a closure, of a variable defined
+   * in an enclosing scope, adding the variable to the captures if this is the
+   * first reference. */
+  private int capture(Scope scope, Ast.Id id, Slot slot) {
+    Integer i = scope.captureIndexes.get(slot);
+    if (i == null) {
+      i = scope.captureCodes.size();
+      final Integer target = scope.recSlots.get(slot);
+      if (target != null) {
+        // The variable is a closure that is being defined in the same
+        // "val rec" as this one, and does not exist yet. Fill in the capture
+        // when it does.
+        scope.links.add(Pair.of(i, target));
+        scope.captureCodes.add(Codes.constant(Unit.INSTANCE));
+      } else {
+        scope.captureCodes.add(compile(scope.outerCx, id));
       }
-    });
-    final Code code = compile(envHolder[0], match.e);
-    return Pair.of(expandRecordPattern(match.pat), code);
+      scope.captureIndexes.put(slot, i);
+    }
+    return i;
+  }
+
+  /** Compiles one arm of a match.
+   *
+   * <p>Each invocation of the closure creates one frame. The variables of
+   * each pattern are bound to slots starting at 0 (only one pattern can
+   * succeed, so the arms share slots) and the "let" expressions in the
+   * body of each arm allocate further slots. */
+  private Pair<Ast.Pat, Code> compileMatch(Context cx, Ast.Match match) {
+    final Ast.Pat pat = expandRecordPattern(match.pat);
+    final int size = cx.frame.size;
+    cx.frame.size = 0;
+    final List<Binding> bindings = cx.allocateSlots(patBindings(pat));
+    final Code code = compile(cx.bindAll(bindings), match.e, true);
+    cx.frame.size = Math.max(size, cx.frame.size);
+    return Pair.of(pat, code);
   }
 
   /** Expands a pattern if it is a record pattern that has an ellipsis
@@ -552,30 +1637,69 @@ public class Compiler {
     }
   }
 
-  private void compileValBind(Environment env, Ast.ValBind valBind,
+  private void compileValBind(Context cx, Ast.ValBind valBind,
       List<Code> varCodes, List<Binding> bindings, List<Action> actions) {
-    final List<Binding> newBindings = new TailList<>(bindings);
     final Code code;
-    if (valBind.rec) {
-      final Map<Ast.IdPat, LinkCode> linkCodes = new IdentityHashMap<>();
-      valBind.pat.visit(pat -> {
-        if (pat instanceof Ast.IdPat) {
-          final Ast.IdPat idPat = (Ast.IdPat) pat;
-          final Type paramType = typeMap.getType(pat);
-          final LinkCode linkCode = new LinkCode();
-          linkCodes.put(idPat, linkCode);
-          bindings.add(Binding.of(idPat.name, paramType, linkCode));
-        }
+    if (actions == null) {
+      // Inside "let". Allocate slots in the current frame. If the value is
+      // recursive, the slots are visible while compiling the expression, so
+      // that functions can call themselves.
+      final int offset = cx.frame.size;
+      final List<Binding> slotBindings =
+          cx.allocateSlots(patBindings(valBind.pat));
+      code = valBind.rec
+          ? compileRec(cx.bindAll(slotBindings), slotBindings, valBind)
+          : compile(cx, valBind.e);
+      bindings.addAll(slotBindings);
+      varCodes.add(
+          Codes.bindFrame(typeMap.typeSystem, valBind.pat, offset, code));
+    } else if (valBind.rec && valBind.pat.op == Op.TUPLE_PAT) {
+      // At top level, compile "val rec (f, g) = (e1, e2)" (which came from
+      // "fun f ... and g ...") as "let val rec (f, g) = (e1, e2) in (f, g)",
+      // and bind each variable to an element of the result.
+      final List<Ast.Pat> pats = ((Ast.TuplePat) valBind.pat).args;
+      final List<Ast.Exp> exps = ((Ast.Tuple) valBind.e).args;
+      final List<Ast.Exp> ids = new ArrayList<>();
+      for (Ast.Pat pat : pats) {
+        ids.add(ast.id(pat.pos, ((Ast.IdPat) pat).name));
+      }
+      code = compileLet(cx, ast.valDecl(valBind.pos, valBind),
+          ast.tuple(valBind.pos, ids), false);
+      actions.add((output, outBindings, evalEnv) -> {
+        final List values = (List) code.eval(evalEnv);
+        Ord.forEach(pats, (pat, i) -> {
+          final String name = ((Ast.IdPat) pat).name;
+          final Type type0 = typeMap.getType(exps.get(i));
+          final Type type = typeMap.typeSystem.ensureClosed(type0);
+          final Object o = values.get(i);
+          outBindings.add(Binding.of(name, type, o));
+          final StringBuilder buf = new StringBuilder();
+          Pretty.pretty(buf, type, new Pretty.TypedVal(name, o, type0));
+          output.add(buf.toString());
+        });
       });
-      code = compile(env.bindAll(bindings), valBind.e);
-      link(linkCodes, valBind.pat, code);
+      return;
+    } else if (valBind.rec) {
+      // At top level, compile "val rec f = e" as "let val rec f = e in f".
+      final Ast.IdPat idPat = (Ast.IdPat) valBind.pat;
+      final Applicable applicable =
+          compileBytecode(cx, idPat.name, valBind.e);
+      code = applicable != null
+          ? Codes.constant(applicable)
+          : profile(cx, idPat.name, idPat.name, valBind.e,
+              compileLet(cx, ast.valDecl(valBind.pos, valBind),
+                  ast.id(idPat.pos, idPat.name), false));
     } else {
-      code = compile(env.bindAll(bindings), valBind.e);
+      final Applicable applicable = compileBytecode(cx, null, valBind.e);
+      if (applicable != null) {
+        code = Codes.constant(applicable);
+      } else if (valBind.pat.op == Op.ID_PAT) {
+        code = profile(cx, ((Ast.IdPat) valBind.pat).name, null, valBind.e,
+            compile(cx, valBind.e));
+      } else {
+        code = compile(cx, valBind.e);
+      }
     }
-    newBindings.clear();
-    final ImmutableList<Pair<Ast.Pat, Code>> patCodes =
-        ImmutableList.of(Pair.of(valBind.pat, code));
-    varCodes.add(evalEnv -> new Closure(evalEnv, patCodes));
 
     if (actions != null) {
       final String name = ((Ast.IdPat) valBind.pat).name;
@@ -591,61 +1715,208 @@ public class Compiler {
     }
   }
 
-  private void link(Map<Ast.IdPat, LinkCode> linkCodes, Ast.Pat pat,
-      Code code) {
-    if (pat instanceof Ast.IdPat) {
-      final LinkCode linkCode = linkCodes.get(pat);
-      if (linkCode != null) {
-        linkCode.refCode = code; // link the reference to the definition
-      }
-    } else if (pat instanceof Ast.TuplePat) {
-      if (code instanceof Codes.TupleCode) {
-        // Recurse into the tuple, binding names to code in parallel
-        final List<Code> codes = ((Codes.TupleCode) code).codes;
-        final List<Ast.Pat> pats = ((Ast.TuplePat) pat).args;
-        Pair.forEach(codes, pats, (code1, pat1) ->
-            link(linkCodes, pat1, code1));
-      }
+  /** Compiles a function defined at top level to JVM bytecode, if the
+   * session uses the bytecode backend and the function is simple enough;
+   * otherwise returns null.
+   *
+   * @param name Name by which the function calls itself, or null if the
+   *   function is not recursive
+   */
+  private @Nullable Applicable compileBytecode(Context cx,
+      @Nullable String name, Ast.Exp exp) {
+    if (!session.bytecode || exp.op != Op.FN) {
+      return null;
     }
+    return BytecodeCompiler.compile(typeMap, cx.env, name, (Ast.Fn) exp);
   }
 
-  /** A piece of code that is references another piece of code.
-   * It is useful when defining recursive functions.
-   * The reference is mutable, and is fixed up when the
-   * function has been compiled.
+  /** In the tiered backend, wraps the code that creates the closure for a
+   * function defined at top level, so that the closure counts its
+   * invocations; when the count reaches the session's threshold, the function
+   * is compiled to JVM bytecode, if possible. Otherwise returns the code
+   * unchanged.
+   *
+   * @param name Name of the function
+   * @param recName Name by which the function calls itself, or null if the
+   *   function is not recursive
    */
-  private static class LinkCode implements Code {
-    private Code refCode;
+  private Code profile(Context cx, String name, @Nullable String recName,
+      Ast.Exp exp, Code code) {
+    if (!session.tiered || exp.op != Op.FN) {
+      return code;
+    }
+    final FunctionProfile profile =
+        new FunctionProfile(name, session.compileThreshold, () ->
+            BytecodeCompiler.compile(typeMap, cx.env, recName, (Ast.Fn) exp));
+    session.profiles.add(profile);
+    return Codes.profile(code, profile);
+  }
+
+  /** Compiles the expression of a recursive value, "val rec f = fn ..."
+   * or "val rec (f, g) = (fn ..., fn ...)".
+   *
+   * <p>Each closure captures the values of its free variables when it is
+   * created, but the closures being defined do not exist until all of them
+   * have been created. References to them are therefore linked afterwards. */
+  private Code compileRec(Context cx, List<Binding> slotBindings,
+      Ast.ValBind valBind) {
+    final List<Ast.Exp> fns = new ArrayList<>();
+    final boolean tuple;
+    if (valBind.e.op == Op.FN) {
+      fns.add(valBind.e);
+      tuple = false;
+    } else if (valBind.e.op == Op.TUPLE
+        && ((Ast.Tuple) valBind.e).args.stream()
+            .allMatch(e -> e.op == Op.FN)
+        && valBind.pat.op == Op.TUPLE_PAT
+        && ((Ast.TuplePat) valBind.pat).args.stream()
+            .allMatch(p -> p.op == Op.ID_PAT)) {
+      fns.addAll(((Ast.Tuple) valBind.e).args);
+      tuple = true;
+    } else {
+      return compile(cx, valBind.e);
+    }
+    final Map<Slot, Integer> recSlots = new HashMap<>();
+    Ord.forEach(slotBindings, (binding, i) ->
+        recSlots.put((Slot) binding.value, i));
+    final ImmutableList.Builder<Code> codes = ImmutableList.builder();
+    final ImmutableList.Builder<ImmutableList<Pair<Integer, Integer>>> links =
+        ImmutableList.builder();
+    for (Ast.Exp fn : fns) {
+      final Scope scope = new Scope(cx, recSlots);
+      codes.add(compileMatchList(cx, scope, ((Ast.Fn) fn).matchList));
+      links.add(ImmutableList.copyOf(scope.links));
+    }
+    return Codes.recursiveClosures(codes.build(), links.build(), tuple);
+  }
 
-    public Object eval(EvalEnv env) {
-      assert refCode != null; // link should have completed by now
-      return refCode.eval(env);
+  /** Converts bindings to bindings whose values are successive slots,
+   * starting at {@code offset}, in an environment at a given depth. */
+  private static List<Binding> slotBindings(List<Binding> bindings,
+      Scope scope, int depth, int offset) {
+    final List<Binding> slotBindings = new ArrayList<>();
+    for (Ord<Binding> binding : Ord.zip(bindings)) {
+      final Slot slot = new Slot(scope, depth, offset + binding.i);
+      slotBindings.add(Binding.of(binding.e.name, binding.e.type, slot));
     }
+    return slotBindings;
   }
 
-  /** A comparable singleton list.
+  /** Compilation context.
    *
-   * @param <E> Element type */
-  private static class ComparableSingletonList<E extends Comparable<E>>
-      extends AbstractList<E>
-      implements Comparable<ComparableSingletonList<E>> {
-    private final E element;
+   * <p>Contains the compilation environment, and the number of evaluation
+   * environments that will have been created, on top of the root evaluation
+   * environment, when code compiled in this context is evaluated.
+   *
+   * <p>If the innermost evaluation environment is a frame, {@code frame}
+   * allows the compiler to allocate slots in it.
+   *
+   * <p>Depth is measured within a {@link Scope}. At depth 0 of the top-level
+   * scope is the root evaluation environment; at depth 0 of a function's
+   * scope are the values captured by the closure, and at depth 1 is the
+   * frame of the current invocation. */
+  private static class Context {
+    final Environment env;
+    final int depth;
+    final @Nullable Frame frame;
+    final Scope scope;
+
+    Context(Environment env, int depth, @Nullable Frame frame, Scope scope) {
+      this.env = Objects.requireNonNull(env);
+      this.depth = depth;
+      this.frame = frame;
+      this.scope = Objects.requireNonNull(scope);
+    }
+
+    static Context of(Environment env) {
+      return new Context(env, 0, null, new Scope(null, ImmutableMap.of()));
+    }
 
-    ComparableSingletonList(E element) {
-      this.element = Objects.requireNonNull(element);
+    /** Returns a context with the same depth and frame plus some
+     * bindings. */
+    Context bindAll(List<Binding> bindings) {
+      return new Context(env.bindAll(bindings), depth, frame, scope);
     }
 
-    @Override public E get(int index) {
-      assert index == 0;
-      return element;
+    /** Returns a context that is one level deeper, whose new environment
+     * contains a slot for each of the given variables. */
+    Context bindSlots(List<Binding> bindings) {
+      return new Context(
+          env.bindAll(slotBindings(bindings, scope, depth + 1, 0)),
+          depth + 1, null, scope);
     }
 
-    @Override public int size() {
-      return 1;
+    /** Returns a context that is one level deeper, whose new environment
+     * is a frame with no slots allocated yet. */
+    Context withFrame() {
+      return new Context(env, depth + 1, new Frame(), scope);
+    }
+
+    /** Allocates a slot in the current frame for each of the given
+     * variables, and returns bindings to those slots. */
+    List<Binding> allocateSlots(List<Binding> bindings) {
+      final int offset = frame.size;
+      frame.size += bindings.size();
+      return slotBindings(bindings, scope, depth, offset);
+    }
+  }
+
+  /** Scope of a function, or of the top level, within which the compiler
+   * knows the layout of the evaluation environments.
+   *
+   * <p>A function reads variables of enclosing scopes from the values
+   * captured when its closure was created. */
+  private static class Scope {
+    /** Context in which the closure is created; null for the top level. */
+    final @Nullable Context outerCx;
+    /** Variables being defined by an enclosing "val rec", and the index of
+     * the closure that will be the value of each. */
+    final Map<Slot, Integer> recSlots;
+    /** Captured variables, and the index of each in the captured values. */
+    final Map<Slot, Integer> captureIndexes = new HashMap<>();
+    /** Codes that compute the captured values when the closure is
+     * created. */
+    final List<Code> captureCodes = new ArrayList<>();
+    /** Captured values that are closures being defined by the same
+     * "val rec": (capture index, closure index) pairs. */
+    final List<Pair<Integer, Integer>> links = new ArrayList<>();
+
+    Scope(@Nullable Context outerCx, Map<Slot, Integer> recSlots) {
+      this.outerCx = outerCx;
+      this.recSlots = ImmutableMap.copyOf(recSlots);
+    }
+  }
+
+  /** Frame whose slots are being allocated by the compiler.
+   *
+   * <p>When compilation of its scope is complete, {@code size} is the number
+   * of slots that the evaluation environment needs. */
+  private static class Frame {
+    int size;
+  }
+
+  /** Location of a variable in an evaluation environment, stored as the value
+   * of its {@link Binding} while code is being compiled.
+   *
+   * <p>The variable is in slot {@code index} of the environment at depth
+   * {@code depth} of {@code scope}. At runtime, code in the same scope at
+   * depth {@code d} finds the variable by going up {@code d - depth}
+   * environments; code in other scopes must capture it. */
+  private static class Slot {
+    final Scope scope;
+    final int depth;
+    final int index;
+    /** Whether the variable has been referenced. */
+    boolean used;
+
+    Slot(Scope scope, int depth, int index) {
+      this.scope = scope;
+      this.depth = depth;
+      this.index = index;
     }
 
-    @Override public int compareTo(ComparableSingletonList<E> o) {
-      return element.compareTo(o.element);
+    @Override public String toString() {
+      return "slot(" + depth + ", " + index + ")";
     }
   }
 
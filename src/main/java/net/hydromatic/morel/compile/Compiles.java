@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableList;
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.type.TypeSystem;
 
@@ -48,14 +49,14 @@ public abstract class Compiles {
    * compiles it to code that can be evaluated by the interpreter.
    */
   public static CompiledStatement prepareStatement(TypeSystem typeSystem,
-      Environment env, AstNode statement) {
+      Session session, Environment env, AstNode statement) {
     Ast.Decl decl;
     if (statement instanceof Ast.Exp) {
       decl = toValDecl((Ast.Exp) statement);
     } else {
       decl = (Ast.Decl) statement;
     }
-    return prepareDecl(typeSystem, env, decl);
+    return prepareDecl(typeSystem, session, env, decl);
   }
 
   /**
@@ -63,10 +64,10 @@ public abstract class Compiles {
    * code that can be evaluated by the interpreter.
    */
   private static CompiledStatement prepareDecl(TypeSystem typeSystem,
-      Environment env, Ast.Decl decl) {
+      Session session, Environment env, Ast.Decl decl) {
     final TypeResolver.Resolved resolved =
         TypeResolver.deduceType(env, decl, typeSystem);
-    final Compiler compiler = new Compiler(resolved.typeMap);
+    final Compiler compiler = new Compiler(resolved.typeMap, session);
     return compiler.compileStatement(env, resolved.node);
   }
 
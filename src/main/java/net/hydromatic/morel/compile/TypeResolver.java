@@ -46,6 +46,7 @@ import net.hydromatic.morel.type.TypeVar;
 import net.hydromatic.morel.util.ConsList;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.MartelliUnifier;
+import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
 import net.hydromatic.morel.util.Unifier;
 
@@ -299,6 +300,16 @@ public class TypeResolver {
           fromSteps.add(order.copy(orderItems));
           break;
 
+        case TAKE:
+          // The count is evaluated in the environment of the "from"
+          // expression, so cannot reference the variables of the rows.
+          final Ast.Take take = (Ast.Take) step;
+          final Unifier.Variable v11 = unifier.variable();
+          final Ast.Exp take2 = deduceType(env, take.exp, v11);
+          equiv(v11, toTerm(PrimitiveType.INT));
+          fromSteps.add(take.copy(take2));
+          break;
+
         case GROUP:
           final Ast.Group group = (Ast.Group) step;
           validateGroup(group);
@@ -563,18 +574,12 @@ public class TypeResolver {
     return matchList2;
   }
 
-  private AstNode deduceValBindType(TypeEnv env, Ast.ValBind valBind,
-      Map<Ast.IdPat, Unifier.Term> termMap, Unifier.Variable v) {
-    final Unifier.Variable vPat = unifier.variable();
+  private AstNode deduceValBindType(TypeEnv env, TypeEnv recEnv,
+      Ast.ValBind valBind, Map<Ast.IdPat, Unifier.Term> termMap,
+      Unifier.Variable v, Unifier.Variable vPat) {
     deducePatType(env, valBind.pat, termMap, null, vPat);
-    TypeEnv env2 = env;
-    if (valBind.rec
-        && valBind.pat instanceof Ast.IdPat) {
-      // If recursive, bind the value (presumably a function) to its type
-      // in the environment before we try to deduce the type of the expression.
-      env2 = env2.bind(((Ast.IdPat) valBind.pat).name, vPat);
-    }
-    final Ast.Exp e2 = deduceType(env2, valBind.e, vPat);
+    final Ast.Exp e2 =
+        deduceType(valBind.rec ? recEnv : env, valBind.e, vPat);
     final Ast.ValBind valBind2 = valBind.copy(valBind.rec, valBind.pat, e2);
     return reg(valBind2, v, unifier.apply(FN_TY_CON, vPat, vPat));
   }
@@ -614,10 +619,25 @@ public class TypeResolver {
   private Ast.Decl deduceValDeclType(TypeEnv env, Ast.ValDecl valDecl,
       Map<Ast.IdPat, Unifier.Term> termMap) {
     Ast.Decl node2;
-    final List<Ast.ValBind> valBinds = new ArrayList<>();
+    // If recursive, bind each value (presumably a function) to its type
+    // in the environment before we try to deduce the type of any of the
+    // expressions. Thus in "fun f x = ... g ... and g y = ... f ...", "f" and
+    // "g" can call each other.
+    final List<Unifier.Variable> patVariables = new ArrayList<>();
+    TypeEnv recEnv = env;
     for (Ast.ValBind valBind : valDecl.valBinds) {
+      final Unifier.Variable vPat = unifier.variable();
+      patVariables.add(vPat);
+      if (valBind.rec
+          && valBind.pat instanceof Ast.IdPat) {
+        recEnv = recEnv.bind(((Ast.IdPat) valBind.pat).name, vPat);
+      }
+    }
+    final List<Ast.ValBind> valBinds = new ArrayList<>();
+    for (Ord<Ast.ValBind> valBind : Ord.zip(valDecl.valBinds)) {
       valBinds.add((Ast.ValBind)
-          deduceValBindType(env, valBind, termMap, unifier.variable()));
+          deduceValBindType(env, recEnv, valBind.e, termMap,
+              unifier.variable(), patVariables.get(valBind.i)));
     }
     node2 = valDecl.copy(valBinds);
     map.put(node2, toTerm(PrimitiveType.UNIT));
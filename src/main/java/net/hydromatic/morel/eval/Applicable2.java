@@ -0,0 +1,35 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+/** A function that takes two arguments at once.
+ *
+ * <p>A call to a curried function, such as {@code String.isPrefix s1 s2},
+ * whose arguments are all present, can pass them directly rather than
+ * creating a partial application. Similarly, a call to a function whose
+ * argument is a pair, such as {@code fn (x, y) => x + y}, can pass the
+ * fields rather than creating a tuple.
+ *
+ * @see Applicable
+ */
+public interface Applicable2 {
+  Object apply(EvalEnv env, Object arg0, Object arg1);
+}
+
+// End Applicable2.java
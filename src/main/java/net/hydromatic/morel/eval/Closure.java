@@ -18,48 +18,71 @@
  */
 package net.hydromatic.morel.eval;
 
-import com.google.common.collect.ImmutableList;
-
-import net.hydromatic.morel.ast.Ast;
-import net.hydromatic.morel.util.Pair;
-
-import java.math.BigDecimal;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
+import javax.annotation.Nullable;
 
 /** Value that is sufficient for a function to bind its argument
  * and evaluate its body. */
 public class Closure implements Comparable<Closure>, Applicable {
-  /** Environment for evaluation. Contains the variables "captured" from the
-   * environment when the closure was created. */
-  private final EvalEnv evalEnv;
-
-  /** A list of (pattern, code) pairs. During bind, the value being bound is
-   * matched against each pattern. When a match is found, the code for that
-   * pattern is used to evaluate.
+  /** Environment for evaluation. Contains the values of the variables
+   * "captured" from the environment when the closure was created; only the
+   * variables that the closure references are captured. */
+  private final EvalEnvs.FrameEvalEnv evalEnv;
+
+  /** The arms of the match: a list of (pattern, code) pairs, with each
+   * pattern compiled into a {@link Matcher}. During bind, the value being
+   * bound is matched against each pattern. When a match is found, the code
+   * for that pattern is used to evaluate.
    *
    * <p>For example, when applying
    * {@code fn x => case x of 0 => "yes" | _ => "no"}
    * to the value {@code 1}, the first pattern ({@code 0} fails) but the second
    * pattern pattern ({@code _}) succeeds, and therefore we evaluate the second
-   * code {@code "no"}. */
-  private final ImmutableList<Pair<Ast.Pat, Code>> patCodes;
+   * code {@code "no"}. The arms are indexed, so in fact the first pattern is
+   * not even tried.
+   *
+   * <p>Closures created by the same {@code fn} share the same arms, so call
+   * sites use this field as the key of their inline cache. */
+  final Matchers.Arms arms;
+
+  /** Number of slots in the frame that is created each time the closure is
+   * applied. The frame holds the variables of the pattern that matches and
+   * the variables bound by "let" in the body. */
+  private final int frameSize;
+
+  /** Counts invocations, and holds the compiled code when the function has
+   * been promoted to a faster tier; null if the function is not profiled. */
+  private @Nullable FunctionProfile profile;
 
   /** Not a public API. */
-  public Closure(EvalEnv evalEnv,
-      ImmutableList<Pair<Ast.Pat, Code>> patCodes) {
-    this.evalEnv = Objects.requireNonNull(evalEnv);
-    this.patCodes = Objects.requireNonNull(patCodes);
+  public Closure(Object[] captures, Matchers.Arms arms, int frameSize) {
+    this.evalEnv = new EvalEnvs.FrameEvalEnv(EvalEnvs.EMPTY, captures);
+    this.arms = Objects.requireNonNull(arms);
+    this.frameSize = frameSize;
   }
 
   @Override public String toString() {
-    return "Closure(evalEnv = " + evalEnv + ", patCodes = " + patCodes + ")";
+    return "Closure(evalEnv = " + evalEnv + ", patCodes = " + arms.patCodes
+        + ")";
   }
 
   public int compareTo(Closure o) {
     return 0;
   }
 
+  /** Sets a captured value. Used to link recursive closures to each other
+   * after they have all been created. */
+  void link(int index, Closure closure) {
+    evalEnv.set(index, closure);
+  }
+
+  /** Sets the profile. Called after the closure is created, before it is
+   * first applied. */
+  void setProfile(FunctionProfile profile) {
+    this.profile = profile;
+  }
+
   /** Binds an argument value to create a new environment for a closure.
    *
    * <p>When calling a simple function such as {@code (fn x => x + 1) 2},
@@ -69,37 +92,96 @@ public class Closure implements Comparable<Closure>, Applicable {
    * when you invoke {@code (fn (x, y) => x + y) (3, 4)}, the binder
    * sets {@code x} to 3 and {@code y} to 4. */
   EvalEnv bind(Object argValue) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Ast.Pat, Code> patCode : patCodes) {
-      final Ast.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        return envRef[0];
+    final EvalEnvs.FrameEvalEnv frame =
+        new EvalEnvs.FrameEvalEnv(evalEnv, frameSize);
+    for (int i : arms.candidates(argValue)) {
+      if (arms.matchers[i].match(frame.values, argValue)) {
+        return frame;
       }
     }
     throw new AssertionError("no match");
   }
 
-  /** Similar to {@link #bind}, but evaluates an expression first. */
-  EvalEnv evalBind(EvalEnv env) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Ast.Pat, Code> patCode : patCodes) {
-      final Object argValue = patCode.right.eval(env);
-      final Ast.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        return envRef[0];
+  /** Similar to {@link #bind}, but also evaluates.
+   *
+   * <p>The code of an arm may return a {@link TailCall} rather than a value,
+   * if its last action is to apply a closure; that closure is applied here,
+   * in a loop, so that a chain of tail calls, for example a function that
+   * calls itself on the tail of a list, uses a constant amount of stack. */
+  Object bindEval(Object argValue) {
+    final Object result = bindEval1(argValue);
+    return result instanceof TailCall ? trampoline((TailCall) result) : result;
+  }
+
+  /** Similar to {@link #bindEval(Object)}, for a closure that has only one
+   * arm, whose matcher and code the caller has already looked up. */
+  Object bindEval(Matcher matcher, Code code, Object argValue) {
+    if (profile != null) {
+      final Applicable compiled = profile.invoke();
+      if (compiled != null) {
+        return compiled.apply(evalEnv, argValue);
       }
     }
-    throw new AssertionError("no match");
+    final EvalEnvs.FrameEvalEnv frame =
+        new EvalEnvs.FrameEvalEnv(evalEnv, frameSize);
+    if (!matcher.match(frame.values, argValue)) {
+      throw new AssertionError("no match");
+    }
+    final Object result = code.eval(frame);
+    return result instanceof TailCall ? trampoline((TailCall) result) : result;
   }
 
-  /** Similar to {@link #bind}, but also evaluates. */
-  Object bindEval(Object argValue) {
-    final EvalEnv[] envRef = {evalEnv};
-    for (Pair<Ast.Pat, Code> patCode : patCodes) {
-      final Ast.Pat pat = patCode.left;
-      if (bindRecurse(pat, envRef, argValue)) {
-        final Code code = patCode.right;
-        return code.eval(envRef[0]);
+  /** Similar to {@link #bindEval(Object)}, for a closure that has only one
+   * arm, whose pattern is a tuple pattern. Rather than a tuple, the caller
+   * provides the code for each field, and each field is bound as soon as it
+   * is evaluated. */
+  Object bindEvalFields(Code[] argCodes, EvalEnv env) {
+    if (profile != null) {
+      // Let the profile count the call; compiled code expects a tuple.
+      final Object[] values = new Object[argCodes.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = argCodes[i].eval(env);
+      }
+      return bindEval(Arrays.asList(values));
+    }
+    final Matcher[] fieldMatchers = arms.fieldMatchers;
+    final EvalEnvs.FrameEvalEnv frame =
+        new EvalEnvs.FrameEvalEnv(evalEnv, frameSize);
+    for (int i = 0; i < argCodes.length; i++) {
+      if (!fieldMatchers[i].match(frame.values, argCodes[i].eval(env))) {
+        throw new AssertionError("no match");
+      }
+    }
+    final Object result = arms.codes[0].eval(frame);
+    return result instanceof TailCall ? trampoline((TailCall) result) : result;
+  }
+
+  /** Applies closures until one returns a value rather than a tail call. */
+  private static Object trampoline(TailCall tailCall) {
+    for (;;) {
+      final Object result =
+          tailCall.closure.bindEval1(tailCall.argValue);
+      if (!(result instanceof TailCall)) {
+        return result;
+      }
+      tailCall = (TailCall) result;
+    }
+  }
+
+  /** Binds an argument value and evaluates the matching arm, returning
+   * either a value or a {@link TailCall}. */
+  private Object bindEval1(Object argValue) {
+    if (profile != null) {
+      final Applicable compiled = profile.invoke();
+      if (compiled != null) {
+        return compiled.apply(evalEnv, argValue);
+      }
+    }
+    final EvalEnvs.FrameEvalEnv frame =
+        new EvalEnvs.FrameEvalEnv(evalEnv, frameSize);
+    for (int i : arms.candidates(argValue)) {
+      if (arms.matchers[i].match(frame.values, argValue)) {
+        return arms.codes[i].eval(frame);
       }
     }
     throw new AssertionError("no match");
@@ -109,92 +191,53 @@ public class Closure implements Comparable<Closure>, Applicable {
     return bindEval(argValue);
   }
 
-  private boolean bindRecurse(Ast.Pat pat, EvalEnv[] envRef,
-      Object argValue) {
-    final List<Object> listValue;
-    final Ast.LiteralPat literalPat;
-    switch (pat.op) {
-    case ID_PAT:
-      final Ast.IdPat idPat = (Ast.IdPat) pat;
-      envRef[0] = envRef[0].bind(idPat.name, argValue);
-      return true;
-
-    case WILDCARD_PAT:
-      return true;
-
-    case BOOL_LITERAL_PAT:
-    case CHAR_LITERAL_PAT:
-    case STRING_LITERAL_PAT:
-      literalPat = (Ast.LiteralPat) pat;
-      return literalPat.value.equals(argValue);
-
-    case INT_LITERAL_PAT:
-      literalPat = (Ast.LiteralPat) pat;
-      return ((BigDecimal) literalPat.value).intValue() == (Integer) argValue;
-
-    case REAL_LITERAL_PAT:
-      literalPat = (Ast.LiteralPat) pat;
-      return ((BigDecimal) literalPat.value).doubleValue() == (Double) argValue;
-
-    case TUPLE_PAT:
-      final Ast.TuplePat tuplePat = (Ast.TuplePat) pat;
-      listValue = (List) argValue;
-      for (Pair<Ast.Pat, Object> pair : Pair.zip(tuplePat.args, listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
-
-    case RECORD_PAT:
-      final Ast.RecordPat recordPat = (Ast.RecordPat) pat;
-      listValue = (List) argValue;
-      for (Pair<Ast.Pat, Object> pair
-          : Pair.zip(recordPat.args.values(), listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
+  /** Returns an {@link Applicable} that has the same effect as this closure,
+   * and is faster to apply many times. If the closure has only one arm, the
+   * Applicable binds the argument using that arm's matcher directly. */
+  Applicable specialize() {
+    if (arms.codes.length != 1) {
+      return this;
+    }
+    final Matcher matcher = arms.matchers[0];
+    final Code code = arms.codes[0];
+    return (env, argValue) -> bindEval(matcher, code, argValue);
+  }
 
-    case LIST_PAT:
-      final Ast.ListPat listPat = (Ast.ListPat) pat;
-      listValue = (List) argValue;
-      if (listValue.size() != listPat.args.size()) {
-        return false;
-      }
-      for (Pair<Ast.Pat, Object> pair : Pair.zip(listPat.args, listValue)) {
-        if (!bindRecurse(pair.left, envRef, pair.right)) {
-          return false;
-        }
-      }
-      return true;
-
-    case CONS_PAT:
-      final Ast.InfixPat infixPat = (Ast.InfixPat) pat;
-      @SuppressWarnings("unchecked") final List<Object> consValue =
-          (List) argValue;
-      if (consValue.isEmpty()) {
-        return false;
+  /** Returns an {@link Applicable2} that has the same effect as applying this
+   * closure to a pair, or null if the closure does not have exactly one arm
+   * whose pattern is a pair pattern, or if it is profiled. */
+  @Nullable Applicable2 specialize2() {
+    final Matcher[] fieldMatchers = arms.fieldMatchers;
+    if (fieldMatchers == null || fieldMatchers.length != 2
+        || profile != null) {
+      return null;
+    }
+    final Matcher matcher0 = fieldMatchers[0];
+    final Matcher matcher1 = fieldMatchers[1];
+    final Code code = arms.codes[0];
+    return (env, arg0, arg1) -> {
+      final EvalEnvs.FrameEvalEnv frame =
+          new EvalEnvs.FrameEvalEnv(evalEnv, frameSize);
+      if (!matcher0.match(frame.values, arg0)
+          || !matcher1.match(frame.values, arg1)) {
+        throw new AssertionError("no match");
       }
-      final Object head = consValue.get(0);
-      final List<Object> tail = consValue.subList(1, consValue.size());
-      return bindRecurse(infixPat.p0, envRef, head)
-          && bindRecurse(infixPat.p1, envRef, tail);
-
-    case CON0_PAT:
-      final Ast.Con0Pat con0Pat = (Ast.Con0Pat) pat;
-      final List con0Value = (List) argValue;
-      return con0Value.get(0).equals(con0Pat.tyCon.name);
-
-    case CON_PAT:
-      final Ast.ConPat conPat = (Ast.ConPat) pat;
-      final List conValue = (List) argValue;
-      return conValue.get(0).equals(conPat.tyCon.name)
-          && bindRecurse(conPat.pat, envRef, conValue.get(1));
-
-    default:
-      throw new AssertionError("cannot compile " + pat.op + ": " + pat);
+      final Object result = code.eval(frame);
+      return result instanceof TailCall
+          ? trampoline((TailCall) result)
+          : result;
+    };
+  }
+
+  /** Request, returned by code in tail position, to apply a closure to an
+   * argument. Never escapes from {@link #bindEval}. */
+  static final class TailCall {
+    final Closure closure;
+    final Object argValue;
+
+    TailCall(Closure closure, Object argValue) {
+      this.closure = closure;
+      this.argValue = argValue;
     }
   }
 }
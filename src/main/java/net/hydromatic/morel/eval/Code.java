@@ -22,6 +22,22 @@ package net.hydromatic.morel.eval;
 public interface Code {
   Object eval(EvalEnv env);
 
+  /** Evaluates an expression of type {@code int}.
+   *
+   * <p>The default implementation unboxes the result of {@link #eval};
+   * implementations that compute an {@code int} should override it, so that
+   * nested arithmetic does not box intermediate results. */
+  default int evalInt(EvalEnv env) {
+    return (Integer) eval(env);
+  }
+
+  /** Evaluates an expression of type {@code real}.
+   *
+   * @see #evalInt(EvalEnv) */
+  default float evalReal(EvalEnv env) {
+    return (Float) eval(env);
+  }
+
   default boolean isConstant() {
     return false;
   }
@@ -24,31 +24,42 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Chars;
+import com.google.common.primitives.Ints;
 
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.Pos;
 import net.hydromatic.morel.compile.BuiltIn;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Macro;
-import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.DataType;
 import net.hydromatic.morel.type.ListType;
 import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordType;
 import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.ConsList;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.Pair;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -60,7 +71,7 @@ public abstract class Codes {
   private Codes() {}
 
   /** Returns a Code that evaluates to the same value in all environments. */
-  public static Code constant(Comparable value) {
+  public static Code constant(Object value) {
     return new Code() {
       public Object eval(EvalEnv env) {
         return value;
@@ -73,65 +84,168 @@ public abstract class Codes {
   }
 
   /** @see BuiltIn#OP_EQ */
-  private static final Applicable OP_EQ = Codes::eq;
-
-  /** Implements {@link #OP_EQ}. */
-  private static boolean eq(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    return list.get(0).equals(list.get(1));
-  }
+  private static final Macro OP_EQ = (env, argType) -> {
+    final BiPredicate<Object, Object> eq = equality(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return eq.test(list.get(0), list.get(1));
+    });
+  };
 
   /** @see BuiltIn#OP_NE */
-  private static final Applicable OP_NE = Codes::ne;
-
-  /** Implements {@link #OP_NE}. */
-  private static boolean ne(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    return !list.get(0).equals(list.get(1));
-  }
+  private static final Macro OP_NE = (env, argType) -> {
+    final BiPredicate<Object, Object> eq = equality(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return !eq.test(list.get(0), list.get(1));
+    });
+  };
 
   /** @see BuiltIn#OP_LT */
-  private static final Applicable OP_LT = Codes::lt;
-
-  /** Implements {@link #OP_LT}. */
-  private static boolean lt(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    final Comparable v0 = (Comparable) list.get(0);
-    final Comparable v1 = (Comparable) list.get(1);
-    return v0.compareTo(v1) < 0;
-  }
+  private static final Macro OP_LT = (env, argType) -> {
+    final Comparator<Object> c = comparator(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return c.compare(list.get(0), list.get(1)) < 0;
+    });
+  };
 
   /** @see BuiltIn#OP_GT */
-  private static final Applicable OP_GT = Codes::gt;
-
-  /** Implements {@link #OP_GT}. */
-  private static boolean gt(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    final Comparable v0 = (Comparable) list.get(0);
-    final Comparable v1 = (Comparable) list.get(1);
-    return v0.compareTo(v1) > 0;
-  }
+  private static final Macro OP_GT = (env, argType) -> {
+    final Comparator<Object> c = comparator(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return c.compare(list.get(0), list.get(1)) > 0;
+    });
+  };
 
   /** @see BuiltIn#OP_LE */
-  private static final Applicable OP_LE = Codes::le;
+  private static final Macro OP_LE = (env, argType) -> {
+    final Comparator<Object> c = comparator(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return c.compare(list.get(0), list.get(1)) <= 0;
+    });
+  };
 
-  /** Implements {@link #OP_LE}. */
-  private static boolean le(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    final Comparable v0 = (Comparable) list.get(0);
-    final Comparable v1 = (Comparable) list.get(1);
-    return v0.compareTo(v1) <= 0;
+  /** @see BuiltIn#OP_GE */
+  private static final Macro OP_GE = (env, argType) -> {
+    final Comparator<Object> c = comparator(operandType(argType));
+    return ast.wrapApplicable((env1, arg) -> {
+      final List list = (List) arg;
+      return c.compare(list.get(0), list.get(1)) >= 0;
+    });
+  };
+
+  /** Returns the type of the operands of a comparison operator, given the
+   * type of its argument; null if the argument is not known to be a
+   * pair. */
+  private static @Nullable Type operandType(Type argType) {
+    return argType instanceof TupleType
+        ? ((TupleType) argType).argTypes.get(0)
+        : null;
   }
 
-  /** @see BuiltIn#OP_GE */
-  private static final Applicable OP_GE = Codes::ge;
+  /** Returns a predicate that tests whether two values of a given type are
+   * equal.
+   *
+   * <p>Values of primitive types are compared without calling
+   * {@link Object#equals(Object)}, and records and tuples are compared
+   * field by field. If the type is not known (null) or is not one of those,
+   * uses {@link Object#equals(Object)}. */
+  static BiPredicate<Object, Object> equality(@Nullable Type type) {
+    if (type instanceof PrimitiveType) {
+      switch ((PrimitiveType) type) {
+      case BOOL:
+        return (v0, v1) -> (boolean) v0 == (boolean) v1;
+      case CHAR:
+        return (v0, v1) -> (char) v0 == (char) v1;
+      case INT:
+        return (v0, v1) -> (int) v0 == (int) v1;
+      case REAL:
+        // Same semantics as Float.equals
+        return (v0, v1) -> Float.compare((float) v0, (float) v1) == 0;
+      case STRING:
+        return (v0, v1) -> ((String) v0).equals(v1);
+      case UNIT:
+        return (v0, v1) -> true;
+      }
+    }
+    final List<Type> fieldTypes = fieldTypes(type);
+    if (fieldTypes != null) {
+      @SuppressWarnings("unchecked")
+      final BiPredicate<Object, Object>[] fields =
+          fieldTypes.stream().map(Codes::equality)
+              .toArray(BiPredicate[]::new);
+      return (v0, v1) -> {
+        final List list0 = (List) v0;
+        final List list1 = (List) v1;
+        for (int i = 0; i < fields.length; i++) {
+          if (!fields[i].test(list0.get(i), list1.get(i))) {
+            return false;
+          }
+        }
+        return true;
+      };
+    }
+    return Object::equals;
+  }
 
-  /** Implements {@link #OP_GE}. */
-  private static boolean ge(EvalEnv env, Object arg) {
-    final List list = (List) arg;
-    final Comparable v0 = (Comparable) list.get(0);
-    final Comparable v1 = (Comparable) list.get(1);
-    return v0.compareTo(v1) >= 0;
+  /** Returns a comparator for values of a given type.
+   *
+   * <p>Values of primitive types are compared without calling
+   * {@link Comparable#compareTo(Object)}, and records and tuples are compared
+   * field by field, in order. If the type is not known (null) or is not one
+   * of those, the values must be {@link Comparable}. */
+  @SuppressWarnings("unchecked")
+  public static Comparator<Object> comparator(@Nullable Type type) {
+    if (type instanceof PrimitiveType) {
+      switch ((PrimitiveType) type) {
+      case BOOL:
+        return (v0, v1) -> Boolean.compare((boolean) v0, (boolean) v1);
+      case CHAR:
+        return (v0, v1) -> Character.compare((char) v0, (char) v1);
+      case INT:
+        return (v0, v1) -> Integer.compare((int) v0, (int) v1);
+      case REAL:
+        return (v0, v1) -> Float.compare((float) v0, (float) v1);
+      case STRING:
+        return (v0, v1) -> ((String) v0).compareTo((String) v1);
+      case UNIT:
+        return (v0, v1) -> 0;
+      }
+    }
+    final List<Type> fieldTypes = fieldTypes(type);
+    if (fieldTypes != null) {
+      final Comparator<Object>[] fields =
+          fieldTypes.stream().map(Codes::comparator)
+              .toArray(Comparator[]::new);
+      return (v0, v1) -> {
+        final List list0 = (List) v0;
+        final List list1 = (List) v1;
+        for (int i = 0; i < fields.length; i++) {
+          final int c = fields[i].compare(list0.get(i), list1.get(i));
+          if (c != 0) {
+            return c;
+          }
+        }
+        return 0;
+      };
+    }
+    return (v0, v1) -> ((Comparable) v0).compareTo(v1);
+  }
+
+  /** Returns the types of the fields of a record or tuple type, in the order
+   * that they occur in values; null if the type is not a record or
+   * tuple. */
+  private static @Nullable List<Type> fieldTypes(@Nullable Type type) {
+    if (type instanceof TupleType) {
+      return ((TupleType) type).argTypes;
+    }
+    if (type instanceof RecordType) {
+      return ImmutableList.copyOf(((RecordType) type).argNameTypes.values());
+    }
+    return null;
   }
 
   /** Returns a Code that evaluates "andalso". */
@@ -229,66 +343,635 @@ public abstract class Codes {
   /** @see BuiltIn#OP_CONS */
   private static final Applicable OP_CONS = Codes::cons;
 
-  /** Implements {@link #OP_CONS}. */
+  /** Implements {@link #OP_CONS}.
+   *
+   * <p>Shares the tail, so takes constant time. */
   private static List cons(EvalEnv env, Object arg) {
     final List list = (List) arg;
-    return ImmutableList.builder().add(list.get(0))
-        .addAll((Iterable) list.get(1))
-        .build();
+    return ConsList.of(list.get(0), (List) list.get(1));
   }
 
-  /** Returns a Code that returns the value of variable "name" in the current
-   * environment. */
-  public static Code get(String name) {
-    return new GetCode(name);
+  /** Returns a Code that returns the value of variable "name", which is
+   * in slot {@code index} of the environment {@code depth} levels above the
+   * current environment. */
+  public static Code get(String name, int depth, int index) {
+    return new GetCode(name, depth, index);
   }
 
-  public static Code let(List<Code> fnCodes, Code argCode) {
-    switch (fnCodes.size()) {
+  /** Returns a Code that evaluates "let val pat = e in result".
+   *
+   * <p>Each of {@code varCodes} assigns one or more slots in the current
+   * frame; then {@code argCode} is evaluated. */
+  public static Code let(List<Code> varCodes, Code argCode) {
+    switch (varCodes.size()) {
     case 0:
       return argCode;
 
     case 1:
       // Use a more efficient runtime path if the list has only one element.
       // The effect is the same.
-      final Code fnCode0 = Iterables.getOnlyElement(fnCodes);
+      final Code varCode0 = Iterables.getOnlyElement(varCodes);
       return env -> {
-        final Closure fnValue = (Closure) fnCode0.eval(env);
-        EvalEnv env2 = fnValue.evalBind(env);
-        return argCode.eval(env2);
+        varCode0.eval(env);
+        return argCode.eval(env);
       };
 
     default:
       return env -> {
-        EvalEnv env2 = env;
-        for (Code fnCode : fnCodes) {
-          final Closure fnValue = (Closure) fnCode.eval(env);
-          env2 = fnValue.evalBind(env2);
+        for (Code varCode : varCodes) {
+          varCode.eval(env);
         }
-        return argCode.eval(env2);
+        return argCode.eval(env);
       };
     }
   }
 
+  /** Returns a Code that evaluates {@code code} and binds the variables of
+   * {@code pat} to slots of the current frame, starting at {@code offset}.
+   *
+   * <p>The current environment must be a frame; see
+   * {@link #frame(int, Code)}. */
+  public static Code bindFrame(TypeSystem typeSystem, Ast.Pat pat,
+      int offset, Code code) {
+    final Matcher matcher = Matchers.of(typeSystem, pat, offset);
+    return env -> {
+      final Object value = code.eval(env);
+      if (!matcher.match(((EvalEnvs.FrameEvalEnv) env).values, value)) {
+        throw new AssertionError("bind failed");
+      }
+      return Unit.INSTANCE;
+    };
+  }
+
+  /** Returns a Code that evaluates {@code argCode}, finds the first arm whose
+   * pattern matches the value, binds the pattern's variables to slots of the
+   * current frame, starting at {@code offset}, and evaluates that arm's code.
+   *
+   * <p>Used for "case"; unlike applying a closure, it does not allocate a
+   * closure or a frame. The current environment must be a frame; see
+   * {@link #frame(int, Code)}. */
+  public static Code match(TypeSystem typeSystem, Code argCode,
+      ImmutableList<Pair<Ast.Pat, Code>> patCodes, int offset) {
+    final Matchers.Arms arms = Matchers.arms(typeSystem, patCodes, offset);
+    return env -> {
+      final Object argValue = argCode.eval(env);
+      final Object[] values = ((EvalEnvs.FrameEvalEnv) env).values;
+      for (int i : arms.candidates(argValue)) {
+        if (arms.matchers[i].match(values, argValue)) {
+          return arms.codes[i].eval(env);
+        }
+      }
+      throw new AssertionError("no match");
+    };
+  }
+
+  /** Returns a Code that creates a closure.
+   *
+   * <p>The closure does not retain the environment in which it is created;
+   * it has a copy of the values of {@code captureCodes} evaluated in that
+   * environment, and its body accesses them at depth 0 of its scope. */
+  public static Code closure(TypeSystem typeSystem,
+      ImmutableList<Code> captureCodes,
+      ImmutableList<Pair<Ast.Pat, Code>> patCodes, int frameSize) {
+    final Matchers.Arms arms = Matchers.arms(typeSystem, patCodes);
+    return env -> {
+      final Object[] captures = new Object[captureCodes.size()];
+      for (int i = 0; i < captures.length; i++) {
+        captures[i] = captureCodes.get(i).eval(env);
+      }
+      return new Closure(captures, arms, frameSize);
+    };
+  }
+
+  /** Returns a Code that evaluates a Code that creates a closure, and
+   * attaches a profile to the closure, so that the closure counts its
+   * invocations and is promoted to a faster tier when it has been invoked
+   * often enough. */
+  public static Code profile(Code closureCode, FunctionProfile profile) {
+    return env -> {
+      final Closure closure = (Closure) closureCode.eval(env);
+      closure.setProfile(profile);
+      return closure;
+    };
+  }
+
+  /** Returns a Code that creates closures that may call themselves and each
+   * other, as defined by "val rec f = fn ... and g = fn ...".
+   *
+   * <p>A closure cannot capture a closure that has not been created yet, so
+   * after all of the closures have been created, {@code links} provides,
+   * for each closure, the captured values to fill in, as
+   * (capture index, closure index) pairs.
+   *
+   * @param closureCodes Codes that create closures
+   * @param links Captured values to link, for each closure
+   * @param tuple Whether to return a list of closures (otherwise there must
+   *              be precisely one closure)
+   */
+  public static Code recursiveClosures(ImmutableList<Code> closureCodes,
+      ImmutableList<ImmutableList<Pair<Integer, Integer>>> links,
+      boolean tuple) {
+    return env -> {
+      final Closure[] closures = new Closure[closureCodes.size()];
+      for (int i = 0; i < closures.length; i++) {
+        closures[i] = (Closure) closureCodes.get(i).eval(env);
+      }
+      for (int i = 0; i < closures.length; i++) {
+        for (Pair<Integer, Integer> link : links.get(i)) {
+          closures[i].link(link.left, closures[link.right]);
+        }
+      }
+      return tuple ? Arrays.asList(closures) : closures[0];
+    };
+  }
+
+  /** Returns a Code that creates a frame with {@code size} slots and
+   * evaluates {@code code} in it. */
+  public static Code frame(int size, Code code) {
+    return env -> code.eval(new EvalEnvs.FrameEvalEnv(env, size));
+  }
+
   /** Generates the code for applying a function (or function value) to an
    * argument. */
   public static Code apply(Code fnCode, Code argCode) {
     assert !fnCode.isConstant(); // if constant, use "apply(Closure, Code)"
+    return new ApplyCode(fnCode, argCode);
+  }
+
+  /** Generates the code for applying a function value to an argument. */
+  public static Code apply(Applicable fnValue, Code argCode) {
     return env -> {
-      final Applicable fnValue = (Applicable) fnCode.eval(env);
       final Object arg = argCode.eval(env);
       return fnValue.apply(env, arg);
     };
   }
 
-  /** Generates the code for applying a function value to an argument. */
-  public static Code apply(Applicable fnValue, Code argCode) {
+  /** Returns an {@link Applicable} that has the same effect as a given
+   * function value, and is faster to apply many times.
+   *
+   * <p>Higher-order built-in functions such as {@code List.map} call it once,
+   * when they are given their function argument, and then apply the result to
+   * each element. */
+  static Applicable specialize(Applicable fn) {
+    return fn instanceof Closure ? ((Closure) fn).specialize() : fn;
+  }
+
+  /** Returns an {@link Applicable2} that has the same effect as applying a
+   * given function value to a pair.
+   *
+   * <p>If the function is a closure whose argument is a tuple pattern, such as
+   * {@code fn (x, y) => x + y}, the result binds the two values directly, and
+   * does not create a tuple. Higher-order built-in functions whose function
+   * argument takes a pair, such as {@code List.foldl}, call it once, and then
+   * apply the result to each element. */
+  static Applicable2 specialize2(Applicable fn) {
+    if (fn instanceof Closure) {
+      final Applicable2 fn2 = ((Closure) fn).specialize2();
+      if (fn2 != null) {
+        return fn2;
+      }
+    }
+    final Applicable fn1 = specialize(fn);
+    return (env, arg0, arg1) -> fn1.apply(env, ImmutableList.of(arg0, arg1));
+  }
+
+  /** Generates the code for applying a function of two arguments, such as a
+   * curried built-in function all of whose arguments are present. */
+  public static Code apply2(Applicable2 fnValue, Code argCode0,
+      Code argCode1) {
+    return env ->
+        fnValue.apply(env, argCode0.eval(env), argCode1.eval(env));
+  }
+
+  /** Returns a Code that evaluates a chain of calls to {@code List.map} and
+   * {@code List.filter} and a built-in function that consumes the resulting
+   * list, in one pass over the source list, without creating intermediate
+   * lists.
+   *
+   * <p>For example, {@code List.foldl f 0 (List.map g (List.filter p xs))}
+   * has terminal {@link BuiltIn#LIST_FOLDL}, arguments {@code [f, 0]},
+   * stages {@code [(LIST_MAP, g), (LIST_FILTER, p)]}, and source
+   * {@code xs}.
+   *
+   * @param terminal Built-in that consumes the list: {@code List.foldl},
+   *                 {@code List.map}, {@code List.filter},
+   *                 {@code List.exists}, {@code List.all} or
+   *                 {@code List.length}
+   * @param argCodes Arguments of the terminal built-in before the list
+   * @param stages Calls to {@code List.map} and {@code List.filter}, with
+   *               their function arguments, outermost first
+   * @param sourceCode Source list
+   */
+  public static Code fused(BuiltIn terminal, List<Code> argCodes,
+      List<Pair<BuiltIn, Code>> stages, Code sourceCode) {
+    return new FusedCode(terminal, argCodes, stages, sourceCode);
+  }
+
+  /** Generates the code for applying a function of three arguments. */
+  public static Code apply3(Applicable3 fnValue, Code argCode0,
+      Code argCode1, Code argCode2) {
+    return env -> fnValue.apply(env, argCode0.eval(env), argCode1.eval(env),
+        argCode2.eval(env));
+  }
+
+  /** Generates the code for applying a function (or function value) to an
+   * argument, where the application is the last action of the body of a
+   * closure.
+   *
+   * <p>If the function is a {@link Closure}, does not apply it, but returns a
+   * {@link Closure.TailCall} and lets the calling closure apply it after its
+   * own frame has been discarded. */
+  public static Code tailApply(Code fnCode, Code argCode) {
     return env -> {
+      final Applicable fnValue = (Applicable) fnCode.eval(env);
       final Object arg = argCode.eval(env);
-      return fnValue.apply(env, arg);
+      return fnValue instanceof Closure
+          ? new Closure.TailCall((Closure) fnValue, arg)
+          : fnValue.apply(env, arg);
     };
   }
 
+  /** Generates the code for applying a function value to an argument in
+   * tail position. */
+  public static Code tailApply(Applicable fnValue, Code argCode) {
+    if (!(fnValue instanceof Closure)) {
+      return apply(fnValue, argCode);
+    }
+    final Closure closure = (Closure) fnValue;
+    return env -> new Closure.TailCall(closure, argCode.eval(env));
+  }
+
+  /** Code that applies a function value to an argument, with an inline
+   * cache.
+   *
+   * <p>Most apply sites only ever see closures created by the same
+   * {@code fn}, and therefore with the same {@link Matchers.Arms}. The first
+   * time the site applies a closure, it records the closure's arms (and, if
+   * there is only one arm, that arm's matcher and code); subsequently, if the
+   * closure has the same arms, it calls the closure directly, without going
+   * through the index of arms. If the site sees a closure with different
+   * arms, or a function value that is not a closure, it becomes polymorphic,
+   * and from then on uses the generic path, {@link Applicable#apply}.
+   *
+   * <p>The state is held in one immutable object, so it is safe for several
+   * threads to evaluate the same site. */
+  private static final class ApplyCode implements Code {
+    /** State of a site that is polymorphic. Its arms are null, so never
+     * match those of a closure. */
+    private static final CallSiteState POLYMORPHIC =
+        new CallSiteState(null, null, null, false);
+
+    private final Code fnCode;
+    private final Code argCode;
+    /** If the argument is a tuple expression, such as {@code (x, y + 1)},
+     * the code for each field; otherwise null. */
+    private final @Nullable Code[] argCodes;
+    /** Null until the site applies a function for the first time. */
+    private @Nullable CallSiteState state;
+
+    ApplyCode(Code fnCode, Code argCode) {
+      this.fnCode = fnCode;
+      this.argCode = argCode;
+      this.argCodes = argCode instanceof TupleCode
+          ? ((TupleCode) argCode).codes.toArray(new Code[0])
+          : null;
+    }
+
+    public Object eval(EvalEnv env) {
+      final Object fnValue = fnCode.eval(env);
+      final CallSiteState state = this.state;
+      if (state != POLYMORPHIC && fnValue instanceof Closure) {
+        final Closure closure = (Closure) fnValue;
+        if (state == null) {
+          final Matchers.Arms arms = closure.arms;
+          final boolean fields = argCodes != null
+              && arms.fieldMatchers != null
+              && arms.fieldMatchers.length == argCodes.length;
+          this.state = arms.codes.length == 1
+              ? new CallSiteState(arms, arms.matchers[0], arms.codes[0],
+                  fields)
+              : new CallSiteState(arms, null, null, false);
+          return closure.bindEval(argCode.eval(env));
+        }
+        if (closure.arms == state.arms) {
+          if (state.fields) {
+            return closure.bindEvalFields(argCodes, env);
+          }
+          final Object arg = argCode.eval(env);
+          return state.code != null
+              ? closure.bindEval(state.matcher, state.code, arg)
+              : closure.bindEval(arg);
+        }
+      }
+      this.state = POLYMORPHIC;
+      return ((Applicable) fnValue).apply(env, argCode.eval(env));
+    }
+  }
+
+  /** Code that applies a chain of {@code List.map} and {@code List.filter}
+   * calls and a terminal built-in function to each element of a list in
+   * turn.
+   *
+   * @see #fused */
+  private static final class FusedCode implements Code {
+    private final BuiltIn terminal;
+    private final Code[] argCodes;
+    /** Function arguments of the stages, outermost first. */
+    private final Code[] stageCodes;
+    /** Whether each stage is a filter (otherwise a map). */
+    private final boolean[] filters;
+    private final Code sourceCode;
+
+    FusedCode(BuiltIn terminal, List<Code> argCodes,
+        List<Pair<BuiltIn, Code>> stages, Code sourceCode) {
+      this.terminal = terminal;
+      this.argCodes = argCodes.toArray(new Code[0]);
+      this.stageCodes = new Code[stages.size()];
+      this.filters = new boolean[stages.size()];
+      for (int i = 0; i < stageCodes.length; i++) {
+        stageCodes[i] = stages.get(i).right;
+        filters[i] = stages.get(i).left == BuiltIn.LIST_FILTER;
+      }
+      this.sourceCode = sourceCode;
+    }
+
+    public Object eval(EvalEnv env) {
+      // Evaluate the arguments in the same order as the nested calls would.
+      final Object[] args = new Object[argCodes.length];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = argCodes[i].eval(env);
+      }
+      final Applicable[] fns = new Applicable[stageCodes.length];
+      for (int i = 0; i < fns.length; i++) {
+        fns[i] = specialize((Applicable) stageCodes[i].eval(env));
+      }
+      final List source = (List) sourceCode.eval(env);
+
+      final Applicable fn;
+      final Applicable2 fn2;
+      final ImmutableList.Builder<Object> builder;
+      Object acc = null;
+      int count = 0;
+      switch (terminal) {
+      case LIST_FOLDL:
+        fn = null;
+        fn2 = specialize2((Applicable) args[0]);
+        builder = null;
+        acc = args[1];
+        break;
+      case LIST_MAP:
+      case LIST_FILTER:
+        fn = specialize((Applicable) args[0]);
+        fn2 = null;
+        builder = ImmutableList.builder();
+        break;
+      case LIST_EXISTS:
+      case LIST_ALL:
+        fn = specialize((Applicable) args[0]);
+        fn2 = null;
+        builder = null;
+        break;
+      case LIST_LENGTH:
+        fn = null;
+        fn2 = null;
+        builder = null;
+        break;
+      default:
+        throw new AssertionError(terminal);
+      }
+
+    elements:
+      for (Object o : source) {
+        // Apply the innermost stage first.
+        for (int i = fns.length - 1; i >= 0; i--) {
+          if (filters[i]) {
+            if (!(Boolean) fns[i].apply(env, o)) {
+              continue elements;
+            }
+          } else {
+            o = fns[i].apply(env, o);
+          }
+        }
+        switch (terminal) {
+        case LIST_FOLDL:
+          acc = fn2.apply(env, o, acc);
+          break;
+        case LIST_MAP:
+          builder.add(fn.apply(env, o));
+          break;
+        case LIST_FILTER:
+          if ((Boolean) fn.apply(env, o)) {
+            builder.add(o);
+          }
+          break;
+        case LIST_EXISTS:
+          if ((Boolean) fn.apply(env, o)) {
+            return true;
+          }
+          break;
+        case LIST_ALL:
+          if (!(Boolean) fn.apply(env, o)) {
+            return false;
+          }
+          break;
+        default:
+          ++count;
+        }
+      }
+
+      switch (terminal) {
+      case LIST_FOLDL:
+        return acc;
+      case LIST_MAP:
+      case LIST_FILTER:
+        return builder.build();
+      case LIST_EXISTS:
+        return false;
+      case LIST_ALL:
+        return true;
+      default:
+        return count;
+      }
+    }
+  }
+
+  /** State of the inline cache of an {@link ApplyCode}. */
+  private static final class CallSiteState {
+    final Matchers.Arms arms;
+    /** If the arms have one arm, its matcher; otherwise null. */
+    final Matcher matcher;
+    /** If the arms have one arm, its code; otherwise null. */
+    final Code code;
+    /** Whether the argument is a tuple expression, and the one arm has a
+     * tuple pattern with the same number of fields; if so, the fields are
+     * bound one at a time, without creating a tuple. */
+    final boolean fields;
+
+    CallSiteState(Matchers.Arms arms, Matcher matcher, Code code,
+        boolean fields) {
+      this.arms = arms;
+      this.matcher = matcher;
+      this.code = code;
+      this.fields = fields;
+    }
+  }
+
+
+  /** Returns a Code that applies a built-in binary operator, such as
+   * {@code +} or {@code <}, to the values of two Codes, or null if there is
+   * no such Code for this operator and type.
+   *
+   * <p>The Code does not create a tuple for the argument, and arithmetic
+   * on {@code int} and {@code real} values does not box intermediate
+   * results. Comparisons of other types use the same type-specific
+   * implementations as the {@link BuiltIn#OP_EQ} (etc.) macros.
+   *
+   * @param builtIn Operator
+   * @param type Type of the operands
+   * @param code0 Left operand
+   * @param code1 Right operand
+   */
+  public static @Nullable Code binary(BuiltIn builtIn, Type type, Code code0,
+      Code code1) {
+    if (type == PrimitiveType.INT) {
+      return intBinary(builtIn, code0, code1);
+    }
+    if (type == PrimitiveType.REAL) {
+      return realBinary(builtIn, code0, code1);
+    }
+    switch (builtIn) {
+    case OP_CARET:
+      return env -> (String) code0.eval(env) + (String) code1.eval(env);
+    case OP_EQ:
+      final BiPredicate<Object, Object> eq = equality(type);
+      return env -> eq.test(code0.eval(env), code1.eval(env));
+    case OP_NE:
+      final BiPredicate<Object, Object> ne = equality(type);
+      return env -> !ne.test(code0.eval(env), code1.eval(env));
+    case OP_LT:
+      final Comparator<Object> lt = comparator(type);
+      return env -> lt.compare(code0.eval(env), code1.eval(env)) < 0;
+    case OP_LE:
+      final Comparator<Object> le = comparator(type);
+      return env -> le.compare(code0.eval(env), code1.eval(env)) <= 0;
+    case OP_GT:
+      final Comparator<Object> gt = comparator(type);
+      return env -> gt.compare(code0.eval(env), code1.eval(env)) > 0;
+    case OP_GE:
+      final Comparator<Object> ge = comparator(type);
+      return env -> ge.compare(code0.eval(env), code1.eval(env)) >= 0;
+    default:
+      return null;
+    }
+  }
+
+  private static @Nullable Code intBinary(BuiltIn builtIn, Code code0,
+      Code code1) {
+    switch (builtIn) {
+    case OP_PLUS:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return code0.evalInt(env) + code1.evalInt(env);
+        }
+      };
+    case OP_MINUS:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return code0.evalInt(env) - code1.evalInt(env);
+        }
+      };
+    case OP_TIMES:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return code0.evalInt(env) * code1.evalInt(env);
+        }
+      };
+    case OP_DIVIDE:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return code0.evalInt(env) / code1.evalInt(env);
+        }
+      };
+    case OP_DIV:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return Math.floorDiv(code0.evalInt(env), code1.evalInt(env));
+        }
+      };
+    case OP_MOD:
+      return new IntCode() {
+        public int evalInt(EvalEnv env) {
+          return Math.floorMod(code0.evalInt(env), code1.evalInt(env));
+        }
+      };
+    case OP_EQ:
+      return env -> code0.evalInt(env) == code1.evalInt(env);
+    case OP_NE:
+      return env -> code0.evalInt(env) != code1.evalInt(env);
+    case OP_LT:
+      return env -> code0.evalInt(env) < code1.evalInt(env);
+    case OP_LE:
+      return env -> code0.evalInt(env) <= code1.evalInt(env);
+    case OP_GT:
+      return env -> code0.evalInt(env) > code1.evalInt(env);
+    case OP_GE:
+      return env -> code0.evalInt(env) >= code1.evalInt(env);
+    default:
+      return null;
+    }
+  }
+
+  private static @Nullable Code realBinary(BuiltIn builtIn, Code code0,
+      Code code1) {
+    switch (builtIn) {
+    case OP_PLUS:
+      return new RealCode() {
+        public float evalReal(EvalEnv env) {
+          return code0.evalReal(env) + code1.evalReal(env);
+        }
+      };
+    case OP_MINUS:
+      return new RealCode() {
+        public float evalReal(EvalEnv env) {
+          return code0.evalReal(env) - code1.evalReal(env);
+        }
+      };
+    case OP_TIMES:
+      return new RealCode() {
+        public float evalReal(EvalEnv env) {
+          return code0.evalReal(env) * code1.evalReal(env);
+        }
+      };
+    case OP_DIVIDE:
+      return new RealCode() {
+        public float evalReal(EvalEnv env) {
+          return code0.evalReal(env) / code1.evalReal(env);
+        }
+      };
+    case OP_EQ:
+      // Same semantics as "eq", which uses Float.equals
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          == 0;
+    case OP_NE:
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          != 0;
+    case OP_LT:
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          < 0;
+    case OP_LE:
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          <= 0;
+    case OP_GT:
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          > 0;
+    case OP_GE:
+      return env -> Float.compare(code0.evalReal(env), code1.evalReal(env))
+          >= 0;
+    default:
+      return null;
+    }
+  }
+
   public static Code ifThenElse(Code condition, Code ifTrue,
       Code ifFalse) {
     return env -> {
@@ -306,28 +989,72 @@ public abstract class Codes {
   }
 
   /** Returns an applicable that constructs an instance of a datatype.
-   * The instance is a list with two elements [constructorName, value]. */
-  public static Applicable tyCon(Type dataType, String name) {
-    Objects.requireNonNull(dataType);
-    Objects.requireNonNull(name);
-    return (env, arg) -> ImmutableList.of(name, arg);
+   * The instance is a {@link DataValue} whose tag is the ordinal of the
+   * constructor. */
+  public static Applicable tyCon(DataType dataType, String name) {
+    final int tag = dataType.ordinal(name);
+    return (env, arg) -> new DataValue(tag, name, arg);
+  }
+
+  /** Returns the value of a datatype constructor that has no argument. */
+  public static DataValue tyCon0(DataType dataType, String name) {
+    return new DataValue(dataType.ordinal(name), name, null);
   }
 
-  public static Code from(Map<Ast.Pat, Code> sources,
+  public static Code from(TypeSystem typeSystem, Map<Ast.Pat, Code> sources,
+      Supplier<RowSink> rowSinkFactory) {
+    return from(typeSystem, sources, ImmutableMap.of(), ImmutableMap.of(),
+        ImmutableMap.of(), rowSinkFactory);
+  }
+
+  /** Generates the code for a {@code from} expression, some of whose sources
+   * are joined to the previous sources using hash tables, some of whose
+   * sources have filters that are applied before iterating over the later
+   * sources, and some of whose sources are evaluated once and cached.
+   *
+   * @param typeSystem Type system
+   * @param sources Pattern and code for each source
+   * @param joins For each source that is joined by hash, keyed by the
+   *              ordinal of the source, the code for the key of an element
+   *              (evaluated in the environment of the source) and for the
+   *              key to look up (evaluated in the environment of the previous
+   *              source)
+   * @param filters For each source that has a filter, keyed by the ordinal
+   *                of the source, a boolean code that is evaluated in the
+   *                environment of the source
+   * @param cacheKeys For each source whose value is cached, keyed by the
+   *                  ordinal of the source, the code for the key of the
+   *                  cache, evaluated in the environment in which the source
+   *                  is evaluated; the source is evaluated again only if the
+   *                  key differs from the previous key
+   * @param rowSinkFactory Creates the sink that receives each row
+   */
+  public static Code from(TypeSystem typeSystem, Map<Ast.Pat, Code> sources,
+      ImmutableMap<Integer, Pair<Code, Code>> joins,
+      ImmutableMap<Integer, Code> filters,
+      ImmutableMap<Integer, Code> cacheKeys,
       Supplier<RowSink> rowSinkFactory) {
     if (sources.size() == 0) {
       return env -> {
         final RowSink rowSink = rowSinkFactory.get();
+        rowSink.start(env);
         rowSink.accept(env);
         return rowSink.result(env);
       };
     }
-    final ImmutableList<Ast.Pat> pats = ImmutableList.copyOf(sources.keySet());
+    final ImmutableList<Function<EvalEnv, MutableEvalEnv>> binders =
+        sources.keySet().stream()
+            .map(pat -> EvalEnvs.mutableBinder(typeSystem, pat))
+            .collect(ImmutableList.toImmutableList());
     final ImmutableList<Code> codes = ImmutableList.copyOf(sources.values());
     return env -> {
       final RowSink rowSink = rowSinkFactory.get();
-      final Looper looper = new Looper(pats, codes, env, rowSink);
-      looper.loop(0);
+      rowSink.start(env);
+      if (!rowSink.isDone()) {
+        final Looper looper = new Looper(binders, codes, joins, filters,
+            cacheKeys, env, rowSink);
+        looper.loop(0);
+      }
       return rowSink.result(env);
     };
   }
@@ -337,21 +1064,77 @@ public abstract class Codes {
     return new WhereRowSink(filterCode, rowSink);
   }
 
-  /** Creates a {@link RowSink} for a {@code order} clause. */
-  public static RowSink orderRowSink(ImmutableList<Pair<Code, Boolean>> codes,
-      ImmutableList<Binding> bindings, RowSink rowSink) {
-    @SuppressWarnings("UnstableApiUsage")
-    final ImmutableList<String> labels = bindings.stream().map(b -> b.name)
-        .collect(ImmutableList.toImmutableList());
-    return new OrderRowSink(codes, labels, rowSink);
+  /** Creates a {@link RowSink} for a {@code take} clause. */
+  public static RowSink takeRowSink(Code countCode, RowSink rowSink) {
+    return new TakeRowSink(countCode, rowSink);
+  }
+
+  /** Creates a {@link RowSink} for a {@code order} clause.
+   *
+   * <p>If the next sink has a {@link RowSink#limit() limit} (for example,
+   * because the next step is {@code take}), the sink keeps only that many
+   * rows.
+   *
+   * @param codes For each order item, the code for the sort key and the
+   *              comparator for its values (see {@link #comparator})
+   */
+  public static RowSink orderRowSink(
+      ImmutableList<Pair<Code, Comparator<Object>>> codes,
+      ImmutableList<String> names, ImmutableList<Code> inCodes,
+      RowSink rowSink) {
+    return new OrderRowSink(codes, names, inCodes, rowSink);
   }
 
-  /** Creates a {@link RowSink} for a {@code group} clause. */
+  /** Creates a {@link RowSink} for a {@code group} clause.
+   *
+   * <p>If {@code buffer} is true, at least one of the aggregate functions
+   * needs the rows of its group, and the sink creates a row from the values
+   * of {@code inCodes} for each input row. */
   public static RowSink groupRowSink(Code keyCode,
-      ImmutableList<Applicable> aggregateCodes, ImmutableList<String> inNames,
+      ImmutableList<Supplier<Accumulator>> accumulatorFactories,
+      boolean buffer, ImmutableList<Code> inCodes,
       ImmutableList<String> outNames, RowSink rowSink) {
-    return new GroupRowSink(keyCode, aggregateCodes, inNames, outNames,
-        rowSink);
+    return new GroupRowSink(keyCode, accumulatorFactories, buffer, inCodes,
+        outNames, rowSink);
+  }
+
+  /** Returns a factory for accumulators that compute a built-in aggregate
+   * function incrementally, or null if the function cannot be computed
+   * incrementally.
+   *
+   * @param builtIn Aggregate function
+   * @param argumentType Type of the argument
+   * @param argumentCode Code that evaluates the argument in the environment
+   *                     of each row; null for {@code count} without argument
+   */
+  public static @Nullable Supplier<Accumulator> accumulator(BuiltIn builtIn,
+      Type argumentType, @Nullable Code argumentCode) {
+    switch (builtIn) {
+    case RELATIONAL_COUNT:
+      return CountAccumulator::new;
+    case RELATIONAL_SUM:
+      if (argumentType == PrimitiveType.INT) {
+        return () -> new SumIntAccumulator(argumentCode);
+      }
+      if (argumentType == PrimitiveType.REAL) {
+        return () -> new SumRealAccumulator(argumentCode);
+      }
+      return null;
+    case RELATIONAL_MIN:
+      return () -> new MinMaxAccumulator(argumentCode, -1);
+    case RELATIONAL_MAX:
+      return () -> new MinMaxAccumulator(argumentCode, 1);
+    default:
+      return null;
+    }
+  }
+
+  /** Returns a factory for accumulators that buffer the rows of their group
+   * and apply an aggregate function, such as one returned by
+   * {@link #aggregate}, to them. */
+  public static Supplier<Accumulator> bufferingAccumulator(
+      Applicable aggregate) {
+    return () -> new BufferingAccumulator(aggregate);
   }
 
   /** Creates a {@link RowSink} for a {@code yield} clause. */
@@ -479,7 +1262,7 @@ public abstract class Codes {
 
   /** @see BuiltIn#STRING_MAP */
   private static final Applicable STRING_MAP = (env, arg) ->
-      stringMap((Applicable) arg);
+      stringMap(specialize((Applicable) arg));
 
   private static Applicable stringMap(Applicable f) {
     return (env, arg) -> {
@@ -496,7 +1279,7 @@ public abstract class Codes {
 
   /** @see BuiltIn#STRING_TRANSLATE */
   private static final Applicable STRING_TRANSLATE = (env, arg) -> {
-    final Applicable f = (Applicable) arg;
+    final Applicable f = specialize((Applicable) arg);
     return translate(f);
   };
 
@@ -526,6 +1309,10 @@ public abstract class Codes {
     };
   }
 
+  /** @see BuiltIn#STRING_IS_PREFIX */
+  private static final Applicable2 STRING_IS_PREFIX2 = (env, s, s2) ->
+      ((String) s2).startsWith((String) s);
+
   /** @see BuiltIn#STRING_IS_SUBSTRING */
   private static final Applicable STRING_IS_SUBSTRING = (env, arg) -> {
     final String s = (String) arg;
@@ -539,6 +1326,10 @@ public abstract class Codes {
     };
   }
 
+  /** @see BuiltIn#STRING_IS_SUBSTRING */
+  private static final Applicable2 STRING_IS_SUBSTRING2 = (env, s, s2) ->
+      ((String) s2).contains((String) s);
+
   /** @see BuiltIn#STRING_IS_SUFFIX */
   private static final Applicable STRING_IS_SUFFIX = (env, arg) -> {
     final String s = (String) arg;
@@ -552,6 +1343,10 @@ public abstract class Codes {
     };
   }
 
+  /** @see BuiltIn#STRING_IS_SUFFIX */
+  private static final Applicable2 STRING_IS_SUFFIX2 = (env, s, s2) ->
+      ((String) s2).endsWith((String) s);
+
   /** @see BuiltIn#LIST_NULL */
   private static final Applicable LIST_NULL = (env, arg) ->
       ((List) arg).isEmpty();
@@ -574,7 +1369,7 @@ public abstract class Codes {
 
   /** @see BuiltIn#LIST_TL */
   private static final Applicable LIST_TL = (env, arg) ->
-      ((List) arg).subList(1, ((List) arg).size());
+      ConsList.tail((List) arg);
 
   /** @see BuiltIn#LIST_LAST */
   private static final Applicable LIST_LAST = (env, arg) ->
@@ -583,7 +1378,7 @@ public abstract class Codes {
   /** @see BuiltIn#LIST_GET_ITEM */
   private static final Applicable LIST_GET_ITEM = (env, arg) -> {
     final List list = (List) arg;
-    return ImmutableList.of(list.get(0), list.subList(1, list.size()));
+    return ImmutableList.of(list.get(0), ConsList.tail(list));
   };
 
   /** @see BuiltIn#LIST_NTH */
@@ -612,8 +1407,7 @@ public abstract class Codes {
 
   /** @see BuiltIn#LIST_REV */
   private static final Applicable LIST_REV = (env, arg) -> {
-    final List list = (List) arg;
-    return Lists.reverse(list);
+    return ImmutableList.copyOf((List) arg).reverse();
   };
 
   /** @see BuiltIn#LIST_CONCAT */
@@ -631,13 +1425,14 @@ public abstract class Codes {
     final List tuple = (List) arg;
     final List list0 = (List) tuple.get(0);
     final List list1 = (List) tuple.get(1);
-    return ImmutableList.builder().addAll(Lists.reverse(list0))
+    return ImmutableList.builder()
+        .addAll(ImmutableList.copyOf(list0).reverse())
         .addAll(list1).build();
   };
 
   /** @see BuiltIn#LIST_APP */
   private static final Applicable LIST_APP = (env, arg) ->
-      listApp((Applicable) arg);
+      listApp(specialize((Applicable) arg));
 
   private static Applicable listApp(Applicable consumer) {
     return (env, arg) -> {
@@ -649,22 +1444,27 @@ public abstract class Codes {
 
   /** @see BuiltIn#LIST_MAP */
   private static final Applicable LIST_MAP = (env, arg) ->
-      listMap((Applicable) arg);
+      listMap(specialize((Applicable) arg));
 
   private static Applicable listMap(Applicable fn) {
-    return (env, arg) -> {
-      final List list = (List) arg;
-      final ImmutableList.Builder<Object> builder = ImmutableList.builder();
-      for (Object o : list) {
-        builder.add(fn.apply(env, o));
-      }
-      return builder.build();
-    };
+    return (env, arg) -> listMap(env, fn, (List) arg);
   }
 
+  private static List listMap(EvalEnv env, Applicable fn, List list) {
+    final ImmutableList.Builder<Object> builder = ImmutableList.builder();
+    for (Object o : list) {
+      builder.add(fn.apply(env, o));
+    }
+    return builder.build();
+  }
+
+  /** @see BuiltIn#LIST_MAP */
+  private static final Applicable2 LIST_MAP2 = (env, fn, list) ->
+      listMap(env, specialize((Applicable) fn), (List) list);
+
   /** @see BuiltIn#LIST_FIND */
   private static final Applicable LIST_FIND = (env, arg) -> {
-    final Applicable fn = (Applicable) arg;
+    final Applicable fn = specialize((Applicable) arg);
     return find(fn);
   };
 
@@ -682,26 +1482,31 @@ public abstract class Codes {
 
   /** @see BuiltIn#LIST_FILTER */
   private static final Applicable LIST_FILTER = (env, arg) -> {
-    final Applicable fn = (Applicable) arg;
+    final Applicable fn = specialize((Applicable) arg);
     return listFilter(fn);
   };
 
   private static Applicable listFilter(Applicable fn) {
-    return (env, arg) -> {
-      final List list = (List) arg;
-      final ImmutableList.Builder builder = ImmutableList.builder();
-      for (Object o : list) {
-        if ((Boolean) fn.apply(env, o)) {
-          builder.add(o);
-        }
+    return (env, arg) -> listFilter(env, fn, (List) arg);
+  }
+
+  private static List listFilter(EvalEnv env, Applicable fn, List list) {
+    final ImmutableList.Builder builder = ImmutableList.builder();
+    for (Object o : list) {
+      if ((Boolean) fn.apply(env, o)) {
+        builder.add(o);
       }
-      return builder.build();
-    };
+    }
+    return builder.build();
   }
 
+  /** @see BuiltIn#LIST_FILTER */
+  private static final Applicable2 LIST_FILTER2 = (env, fn, list) ->
+      listFilter(env, specialize((Applicable) fn), (List) list);
+
   /** @see BuiltIn#LIST_PARTITION */
   private static final Applicable LIST_PARTITION = (env, arg) -> {
-    final Applicable fn = (Applicable) arg;
+    final Applicable fn = specialize((Applicable) arg);
     return listPartition(fn);
   };
 
@@ -718,65 +1523,86 @@ public abstract class Codes {
   }
   /** @see BuiltIn#LIST_FOLDL */
   private static final Applicable LIST_FOLDL = (env, arg) ->
-      listFold(true, (Applicable) arg);
+      listFold(true, specialize((Applicable) arg));
 
   /** @see BuiltIn#LIST_FOLDR */
   private static final Applicable LIST_FOLDR = (env, arg) ->
-      listFold(false, (Applicable) arg);
+      listFold(false, specialize((Applicable) arg));
 
   private static Applicable listFold(boolean left, Applicable fn) {
-    return (env, arg) -> listFold2(left, fn, arg);
+    final Applicable2 fn2 = specialize2(fn);
+    return (env, arg) -> listFold2(left, fn2, arg);
   }
 
-  private static Applicable listFold2(boolean left, Applicable fn,
+  private static Applicable listFold2(boolean left, Applicable2 fn,
       Object init) {
-    return (env, arg) -> {
-      final List list = (List) arg;
-      Object b = init;
-      for (Object a : left ? list : Lists.reverse(list)) {
-        b = fn.apply(env, ImmutableList.of(a, b));
-      }
-      return b;
-    };
+    return (env, arg) -> listFold(env, left, fn, init, (List) arg);
+  }
+
+  private static Object listFold(EvalEnv env, boolean left, Applicable2 fn,
+      Object init, List list) {
+    Object b = init;
+    for (Object a : left ? list : ImmutableList.copyOf(list).reverse()) {
+      b = fn.apply(env, a, b);
+    }
+    return b;
   }
 
+  /** @see BuiltIn#LIST_FOLDL */
+  private static final Applicable3 LIST_FOLDL3 = (env, fn, init, list) ->
+      listFold(env, true, specialize2((Applicable) fn), init, (List) list);
+
+  /** @see BuiltIn#LIST_FOLDR */
+  private static final Applicable3 LIST_FOLDR3 = (env, fn, init, list) ->
+      listFold(env, false, specialize2((Applicable) fn), init, (List) list);
+
   /** @see BuiltIn#LIST_EXISTS */
   private static final Applicable LIST_EXISTS = (env, arg) ->
-      listExists((Applicable) arg);
+      listExists(specialize((Applicable) arg));
 
   private static Applicable listExists(Applicable fn) {
-    return (env, arg) -> {
-      final List list = (List) arg;
-      for (Object o : list) {
-        if ((Boolean) fn.apply(env, o)) {
-          return true;
-        }
+    return (env, arg) -> listExists(env, fn, (List) arg);
+  }
+
+  private static boolean listExists(EvalEnv env, Applicable fn, List list) {
+    for (Object o : list) {
+      if ((Boolean) fn.apply(env, o)) {
+        return true;
       }
-      return false;
-    };
+    }
+    return false;
   }
 
+  /** @see BuiltIn#LIST_EXISTS */
+  private static final Applicable2 LIST_EXISTS2 = (env, fn, list) ->
+      listExists(env, specialize((Applicable) fn), (List) list);
+
   /** @see BuiltIn#LIST_ALL */
   private static final Applicable LIST_ALL = (env, arg) ->
-      listAll((Applicable) arg);
+      listAll(specialize((Applicable) arg));
 
   private static Applicable listAll(Applicable fn) {
-    return (env, arg) -> {
-      final List list = (List) arg;
-      for (Object o : list) {
-        if (!(Boolean) fn.apply(env, o)) {
-          return false;
-        }
+    return (env, arg) -> listAll(env, fn, (List) arg);
+  }
+
+  private static boolean listAll(EvalEnv env, Applicable fn, List list) {
+    for (Object o : list) {
+      if (!(Boolean) fn.apply(env, o)) {
+        return false;
       }
-      return true;
-    };
+    }
+    return true;
   }
 
+  /** @see BuiltIn#LIST_ALL */
+  private static final Applicable2 LIST_ALL2 = (env, fn, list) ->
+      listAll(env, specialize((Applicable) fn), (List) list);
+
   /** @see BuiltIn#LIST_TABULATE */
   private static final Applicable LIST_TABULATE = (env, arg) -> {
     final List tuple = (List) arg;
     final int count = (Integer) tuple.get(0);
-    final Applicable fn = (Applicable) tuple.get(1);
+    final Applicable fn = specialize((Applicable) tuple.get(1));
     final ImmutableList.Builder<Object> builder = ImmutableList.builder();
     for (int i = 0; i < count; i++) {
       builder.add(fn.apply(env, i));
@@ -784,29 +1610,245 @@ public abstract class Codes {
     return builder.build();
   };
 
+  /** Number of elements below which {@code List.parMap},
+   * {@code List.parFilter} and {@code List.parTabulate} do not split their
+   * work into parallel tasks. */
+  static final int PARALLEL_THRESHOLD = 1_000;
+
+  /** @see BuiltIn#LIST_PAR_MAP */
+  private static final Applicable2 LIST_PAR_MAP2 = (env, fn, list) ->
+      parallel(env, specialize((Applicable) fn), (List) list, false);
+
+  /** @see BuiltIn#LIST_PAR_FILTER */
+  private static final Applicable2 LIST_PAR_FILTER2 = (env, fn, list) ->
+      parallel(env, specialize((Applicable) fn), (List) list, true);
+
+  /** @see BuiltIn#LIST_PAR_TABULATE */
+  private static final Applicable LIST_PAR_TABULATE = (env, arg) -> {
+    final List tuple = (List) arg;
+    final int count = (Integer) tuple.get(0);
+    final Applicable fn = specialize((Applicable) tuple.get(1));
+    if (count < PARALLEL_THRESHOLD) {
+      return LIST_TABULATE.apply(env, arg);
+    }
+    return ImmutableList.copyOf(
+        invoke(new ListTask(env, fn, null, false, 0, count)));
+  };
+
+  /** Applies a function to each element of a list, in parallel if the list
+   * is large enough, and returns the results (or, if {@code filter}, the
+   * elements for which the function returns true) in their original
+   * order. */
+  private static List parallel(EvalEnv env, Applicable fn, List list,
+      boolean filter) {
+    if (list.size() < PARALLEL_THRESHOLD) {
+      return filter ? listFilter(env, fn, list) : listMap(env, fn, list);
+    }
+    // Copy to an array, because list may be a cons list, whose "get" method
+    // is not constant time.
+    final Object[] values = list.toArray();
+    return ImmutableList.copyOf(
+        invoke(new ListTask(env, fn, values, filter, 0, values.length)));
+  }
+
+  /** Runs a task in the common fork-join pool, and returns its result.
+   *
+   * <p>If a sub-task failed in another thread, {@link ForkJoinTask#join}
+   * throws a copy of the exception (without its message) whose cause is the
+   * original exception; we throw the original, so that the error is the same
+   * as if the function had been applied sequentially. */
+  private static <T> T invoke(ForkJoinTask<T> task) {
+    try {
+      return ForkJoinPool.commonPool().invoke(task);
+    } catch (RuntimeException e) {
+      RuntimeException e2 = e;
+      while (e2.getCause() != null
+          && e2.getCause().getClass() == e2.getClass()) {
+        e2 = (RuntimeException) e2.getCause();
+      }
+      throw e2;
+    }
+  }
+
+  /** Task that applies a function to a range of elements of an array (or,
+   * if the array is null, to a range of integers) and returns a list of
+   * results, splitting the range between sub-tasks if it is large.
+   *
+   * <p>Sub-tasks share the environment, but do not modify it; each
+   * application of a {@link Closure} creates its own frame.
+   *
+   * <p>If elements in both halves of a range fail, the failure in the left
+   * half is thrown, as it would be if the elements were evaluated in
+   * order. */
+  private static class ListTask extends RecursiveTask<List<Object>> {
+    private final EvalEnv env;
+    private final Applicable fn;
+    private final @Nullable Object[] values;
+    private final boolean filter;
+    private final int start;
+    private final int end;
+
+    ListTask(EvalEnv env, Applicable fn, @Nullable Object[] values,
+        boolean filter, int start, int end) {
+      this.env = env;
+      this.fn = fn;
+      this.values = values;
+      this.filter = filter;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override protected List<Object> compute() {
+      if (end - start <= PARALLEL_THRESHOLD) {
+        final List<Object> list = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+          final Object o = values == null ? (Object) i : values[i];
+          if (!filter) {
+            list.add(fn.apply(env, o));
+          } else if ((Boolean) fn.apply(env, o)) {
+            list.add(o);
+          }
+        }
+        return list;
+      }
+      final int mid = (start + end) >>> 1;
+      final ListTask left =
+          new ListTask(env, fn, values, filter, start, mid);
+      left.fork();
+      final List<Object> right;
+      try {
+        right = new ListTask(env, fn, values, filter, mid, end).compute();
+      } catch (RuntimeException e) {
+        left.join(); // if the left half failed, throw its exception
+        throw e;
+      }
+      final List<Object> list = left.join();
+      list.addAll(right);
+      return list;
+    }
+  }
+
+  /** @see BuiltIn#LIST_REDUCE */
+  private static final Applicable LIST_REDUCE = (env, arg) -> {
+    final Applicable2 fn = specialize2((Applicable) arg);
+    return (Applicable) (env2, identity) ->
+        (Applicable) (env3, list) ->
+            listReduce(env3, fn, identity, (List) list);
+  };
+
+  private static Object listReduce(EvalEnv env, Applicable2 fn,
+      Object identity, List list) {
+    Object acc = identity;
+    for (Object o : list) {
+      acc = fn.apply(env, acc, o);
+    }
+    return acc;
+  }
+
+  /** @see BuiltIn#LIST_REDUCE */
+  private static final Applicable3 LIST_REDUCE3 = (env, fn, identity, list) ->
+      listReduce(env, specialize2((Applicable) fn), identity, (List) list);
+
+  /** @see BuiltIn#LIST_REDUCE */
+  private static final Applicable3 LIST_PAR_REDUCE3 =
+      (env, fn, identity, list) ->
+          parallelReduce(env, specialize2((Applicable) fn), identity,
+              (List) list);
+
+  /** Parallel implementation of {@link BuiltIn#LIST_REDUCE} with its first
+   * two arguments; returns an aggregate function. */
+  private static final Applicable2 LIST_PAR_REDUCE2 = (env, fn, identity) -> {
+    final Applicable2 fn2 = specialize2((Applicable) fn);
+    return (Applicable) (env2, list) ->
+        parallelReduce(env2, fn2, identity, (List) list);
+  };
+
+  /** Reduces a list using an associative function, as a tree of parallel
+   * tasks if the list is large enough. */
+  private static Object parallelReduce(EvalEnv env, Applicable2 fn,
+      Object identity, List list) {
+    if (list.size() < PARALLEL_THRESHOLD) {
+      return listReduce(env, fn, identity, list);
+    }
+    final Object[] values = list.toArray();
+    return invoke(
+        new ReduceTask(env, fn, identity, values, 0, values.length));
+  }
+
+  /** Task that reduces a range of elements of an array, splitting the range
+   * between sub-tasks if it is large, and combining the result of the left
+   * half with the result of the right half. As in {@link ListTask}, a
+   * failure in the left half takes precedence. */
+  private static class ReduceTask extends RecursiveTask<Object> {
+    private final EvalEnv env;
+    private final Applicable2 fn;
+    private final Object identity;
+    private final Object[] values;
+    private final int start;
+    private final int end;
+
+    ReduceTask(EvalEnv env, Applicable2 fn, Object identity, Object[] values,
+        int start, int end) {
+      this.env = env;
+      this.fn = fn;
+      this.identity = identity;
+      this.values = values;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override protected Object compute() {
+      if (end - start <= PARALLEL_THRESHOLD) {
+        Object acc = identity;
+        for (int i = start; i < end; i++) {
+          acc = fn.apply(env, acc, values[i]);
+        }
+        return acc;
+      }
+      final int mid = (start + end) >>> 1;
+      final ReduceTask left =
+          new ReduceTask(env, fn, identity, values, start, mid);
+      left.fork();
+      final Object right;
+      try {
+        right = new ReduceTask(env, fn, identity, values, mid, end).compute();
+      } catch (RuntimeException e) {
+        left.join(); // if the left half failed, throw its exception
+        throw e;
+      }
+      return fn.apply(env, left.join(), right);
+    }
+  }
+
   /** @see BuiltIn#LIST_COLLATE */
   private static final Applicable LIST_COLLATE = (env, arg) ->
-      collate((Applicable) arg);
+      collate(specialize((Applicable) arg));
 
   private static Applicable collate(Applicable comparator) {
-    return (env, arg) -> {
-      final List tuple = (List) arg;
-      final List list0 = (List) tuple.get(0);
-      final List list1 = (List) tuple.get(1);
-      final int n = Math.min(list0.size(), list1.size());
-      for (int i = 0; i < n; i++) {
-        final Object element0 = list0.get(i);
-        final Object element1 = list1.get(i);
-        final int compare = (Integer) comparator.apply(env,
-            ImmutableList.of(element0, element1));
-        if (compare != 0) {
-          return compare;
-        }
+    final Applicable2 comparator2 = specialize2(comparator);
+    return (env, arg) -> collate(env, comparator2, (List) arg);
+  }
+
+  private static int collate(EvalEnv env, Applicable2 comparator,
+      List tuple) {
+    final List list0 = (List) tuple.get(0);
+    final List list1 = (List) tuple.get(1);
+    final Iterator iterator0 = list0.iterator();
+    final Iterator iterator1 = list1.iterator();
+    while (iterator0.hasNext() && iterator1.hasNext()) {
+      final int compare = (Integer) comparator.apply(env, iterator0.next(),
+          iterator1.next());
+      if (compare != 0) {
+        return compare;
       }
-      return Integer.compare(list0.size(), list1.size());
-    };
+    }
+    return Integer.compare(list0.size(), list1.size());
   }
 
+  /** @see BuiltIn#LIST_COLLATE */
+  private static final Applicable2 LIST_COLLATE2 = (env, fn, tuple) ->
+      collate(env, specialize2((Applicable) fn), (List) tuple);
+
   /** @see BuiltIn#RELATIONAL_COUNT */
   private static final Applicable RELATIONAL_COUNT = (env, arg) ->
       ((List) arg).size();
@@ -867,6 +1909,16 @@ public abstract class Codes {
                               entry.getValue().type.description()))))
               .collect(Collectors.toList()));
 
+  /** Returns an implementation of {@link BuiltIn#SYS_PROFILE} that reports
+   * the current state of a list of profiles. */
+  public static Applicable sysProfile(List<FunctionProfile> profiles) {
+    return (env, arg) -> profiles.stream()
+        .map(p ->
+            Arrays.asList(Ints.saturatedCast(p.count()), p.name,
+                p.tier().description))
+        .collect(ImmutableList.toImmutableList());
+  }
+
   private static void populateBuiltIns(Map<String, Object> valueMap) {
     BUILT_IN_VALUES.forEach((key, value) -> {
       valueMap.put(key.mlName, value);
@@ -1013,11 +2065,73 @@ public abstract class Codes {
           .put(BuiltIn.LIST_ALL, LIST_ALL)
           .put(BuiltIn.LIST_TABULATE, LIST_TABULATE)
           .put(BuiltIn.LIST_COLLATE, LIST_COLLATE)
+          .put(BuiltIn.LIST_PAR_MAP, LIST_MAP)
+          .put(BuiltIn.LIST_PAR_FILTER, LIST_FILTER)
+          .put(BuiltIn.LIST_PAR_TABULATE, LIST_TABULATE)
+          .put(BuiltIn.LIST_REDUCE, LIST_REDUCE)
           .put(BuiltIn.RELATIONAL_COUNT, RELATIONAL_COUNT)
           .put(BuiltIn.RELATIONAL_MAX, RELATIONAL_MAX)
           .put(BuiltIn.RELATIONAL_MIN, RELATIONAL_MIN)
           .put(BuiltIn.RELATIONAL_SUM, RELATIONAL_SUM)
+          .put(BuiltIn.RELATIONAL_REDUCE, LIST_REDUCE)
           .put(BuiltIn.SYS_ENV, SYS_ENV)
+          .put(BuiltIn.SYS_PROFILE, sysProfile(ImmutableList.of()))
+          .build();
+
+  /** Implementations of curried built-in functions of two arguments, for
+   * calls that supply both arguments, such as {@code String.isPrefix s1 s2}.
+   * Such a call does not need to create a partial application. */
+  public static final ImmutableMap<BuiltIn, Applicable2> BUILT_IN_VALUES2 =
+      ImmutableMap.<BuiltIn, Applicable2>builder()
+          .put(BuiltIn.STRING_IS_PREFIX, STRING_IS_PREFIX2)
+          .put(BuiltIn.STRING_IS_SUBSTRING, STRING_IS_SUBSTRING2)
+          .put(BuiltIn.STRING_IS_SUFFIX, STRING_IS_SUFFIX2)
+          .put(BuiltIn.LIST_MAP, LIST_MAP2)
+          .put(BuiltIn.LIST_FILTER, LIST_FILTER2)
+          .put(BuiltIn.LIST_EXISTS, LIST_EXISTS2)
+          .put(BuiltIn.LIST_ALL, LIST_ALL2)
+          .put(BuiltIn.LIST_COLLATE, LIST_COLLATE2)
+          .put(BuiltIn.LIST_PAR_MAP, LIST_MAP2)
+          .put(BuiltIn.LIST_PAR_FILTER, LIST_FILTER2)
+          .build();
+
+  /** Implementations of the parallel list functions, such as
+   * {@code List.parMap}, that apply their function argument to several
+   * elements at the same time.
+   *
+   * <p>The values of those functions in {@link #BUILT_IN_VALUES} and
+   * {@link #BUILT_IN_VALUES2} are sequential. The compiler uses these
+   * implementations only for calls that supply all arguments and whose
+   * function argument has no side effects. */
+  public static final ImmutableMap<BuiltIn, Applicable> PARALLEL_VALUES =
+      ImmutableMap.of(BuiltIn.LIST_PAR_TABULATE, LIST_PAR_TABULATE);
+
+  /** As {@link #PARALLEL_VALUES}, for curried functions of two
+   * arguments. Also contains {@code List.reduce} and
+   * {@code Relational.reduce}, which have three arguments; a call that
+   * supplies the first two, such as {@code reduce f 0}, is an aggregate
+   * function that reduces its list in parallel. */
+  public static final ImmutableMap<BuiltIn, Applicable2> PARALLEL_VALUES2 =
+      ImmutableMap.of(BuiltIn.LIST_PAR_MAP, LIST_PAR_MAP2,
+          BuiltIn.LIST_PAR_FILTER, LIST_PAR_FILTER2,
+          BuiltIn.LIST_REDUCE, LIST_PAR_REDUCE2,
+          BuiltIn.RELATIONAL_REDUCE, LIST_PAR_REDUCE2);
+
+  /** As {@link #PARALLEL_VALUES}, for curried functions of three
+   * arguments. */
+  public static final ImmutableMap<BuiltIn, Applicable3> PARALLEL_VALUES3 =
+      ImmutableMap.of(BuiltIn.LIST_REDUCE, LIST_PAR_REDUCE3,
+          BuiltIn.RELATIONAL_REDUCE, LIST_PAR_REDUCE3);
+
+  /** Implementations of curried built-in functions of three arguments, for
+   * calls that supply all three arguments, such as
+   * {@code List.foldl f init list}. */
+  public static final ImmutableMap<BuiltIn, Applicable3> BUILT_IN_VALUES3 =
+      ImmutableMap.<BuiltIn, Applicable3>builder()
+          .put(BuiltIn.LIST_FOLDL, LIST_FOLDL3)
+          .put(BuiltIn.LIST_FOLDR, LIST_FOLDR3)
+          .put(BuiltIn.LIST_REDUCE, LIST_REDUCE3)
+          .put(BuiltIn.RELATIONAL_REDUCE, LIST_REDUCE3)
           .build();
 
   /** A code that evaluates expressions and creates a tuple with the results.
@@ -1047,20 +2161,48 @@ public abstract class Codes {
     final List<Iterable<Object>> iterables = new ArrayList<>();
     final List<MutableEvalEnv> mutableEvalEnvs = new ArrayList<>();
     private final ImmutableList<Code> codes;
+    private final ImmutableMap<Integer, Pair<Code, Code>> joins;
+    private final ImmutableMap<Integer, Code> filters;
+    private final ImmutableMap<Integer, Code> cacheKeys;
+    /** For each cached source, the most recent cache key; the cache holds
+     * only one value, so that its size does not grow with the number of
+     * distinct keys. */
+    private final Object[] cachedKeys;
+    /** For each cached source, its value for the most recent cache key, or
+     * null if it has not been evaluated. */
+    private final Iterable<Object>[] cachedValues;
+    /** Hash table for each source that is joined by hash; created when the
+     * loop first reaches that source. */
+    private final Map<Integer, ListMultimap<Object, Object>> tables =
+        new HashMap<>();
     private final RowSink rowSink;
 
-    Looper(ImmutableList<Ast.Pat> pats, ImmutableList<Code> codes, EvalEnv env,
+    Looper(ImmutableList<Function<EvalEnv, MutableEvalEnv>> binders,
+        ImmutableList<Code> codes,
+        ImmutableMap<Integer, Pair<Code, Code>> joins,
+        ImmutableMap<Integer, Code> filters,
+        ImmutableMap<Integer, Code> cacheKeys, EvalEnv env,
         RowSink rowSink) {
       this.codes = codes;
+      this.joins = joins;
+      this.filters = filters;
+      this.cacheKeys = cacheKeys;
       this.rowSink = rowSink;
-      for (Ast.Pat pat : pats) {
-        final MutableEvalEnv mutableEnv = env.bindMutablePat(pat);
+      this.cachedKeys = new Object[codes.size()];
+      //noinspection unchecked
+      this.cachedValues = new Iterable[codes.size()];
+      // The first source is evaluated in the original environment; each
+      // subsequent source in the environment of the source before it.
+      //noinspection unchecked
+      iterables.add((Iterable<Object>) codes.get(0).eval(env));
+      for (Function<EvalEnv, MutableEvalEnv> binder : binders) {
+        final MutableEvalEnv mutableEnv = binder.apply(env);
         mutableEvalEnvs.add(mutableEnv);
         env = mutableEnv;
+      }
+      for (int i = 1; i < binders.size(); i++) {
         iterables.add(null);
       }
-      //noinspection unchecked
-      iterables.set(0, (Iterable<Object>) codes.get(0).eval(env));
     }
 
     /** Generates the {@code i}th nested loop of a cartesian product of the
@@ -1068,32 +2210,198 @@ public abstract class Codes {
     void loop(int i) {
       final Iterable<Object> iterable = iterables.get(i);
       final MutableEvalEnv mutableEvalEnv = mutableEvalEnvs.get(i);
+      final Code filter = filters.get(i);
       final int next = i + 1;
       if (next == iterables.size()) {
         for (Object o : iterable) {
-          if (mutableEvalEnv.setOpt(o)) {
+          if (mutableEvalEnv.setOpt(o)
+              && (filter == null || (Boolean) filter.eval(mutableEvalEnv))) {
             rowSink.accept(mutableEvalEnv);
+            if (rowSink.isDone()) {
+              return;
+            }
           }
         }
       } else {
         for (Object o : iterable) {
-          if (mutableEvalEnv.setOpt(o)) {
-            //noinspection unchecked
-            iterables.set(next, (Iterable<Object>)
-                codes.get(next).eval(mutableEvalEnvs.get(next)));
+          if (mutableEvalEnv.setOpt(o)
+              && (filter == null || (Boolean) filter.eval(mutableEvalEnv))) {
+            iterables.set(next, source(next, mutableEvalEnv));
             loop(next);
+            if (rowSink.isDone()) {
+              return;
+            }
           }
         }
       }
     }
+
+    /** Returns the elements of the {@code i}th source that may be combined
+     * with the current values of the previous sources, which are in
+     * {@code env}. If the source is joined by hash, these are the elements
+     * whose key matches; otherwise all elements. */
+    @SuppressWarnings("unchecked")
+    private Iterable<Object> source(int i, EvalEnv env) {
+      final Pair<Code, Code> join = joins.get(i);
+      if (join == null) {
+        final Code cacheKey = cacheKeys.get(i);
+        if (cacheKey == null) {
+          return (Iterable<Object>) codes.get(i).eval(env);
+        }
+        // Loops are nested, so rows of the previous sources that have the
+        // same key are usually consecutive.
+        final Object key = cacheKey.eval(env);
+        if (cachedValues[i] == null || !key.equals(cachedKeys[i])) {
+          cachedKeys[i] = key;
+          cachedValues[i] = (Iterable<Object>) codes.get(i).eval(env);
+        }
+        return cachedValues[i];
+      }
+      ListMultimap<Object, Object> table = tables.get(i);
+      if (table == null) {
+        // The source does not depend on the previous sources, so we
+        // evaluate it once.
+        table = ArrayListMultimap.create();
+        final MutableEvalEnv mutableEvalEnv = mutableEvalEnvs.get(i);
+        for (Object o : (Iterable<Object>) codes.get(i).eval(env)) {
+          if (mutableEvalEnv.setOpt(o)) {
+            table.put(join.left.eval(mutableEvalEnv), o);
+          }
+        }
+        tables.put(i, table);
+      }
+      return table.get(join.right.eval(env));
+    }
   }
 
   /** Accepts rows produced by a supplier as part of a {@code from} clause. */
   public interface RowSink {
+    /** Called before the first row, with the environment in which the
+     * {@code from} expression is evaluated. */
+    void start(EvalEnv env);
+
     void accept(EvalEnv env);
+
+    /** Returns whether this sink will ignore any further rows, in which case
+     * the caller may stop generating them. */
+    boolean isDone();
+
+    /** Returns the maximum number of rows that this sink will use, or -1 if
+     * there is no limit; valid after {@link #start}. */
+    default int limit() {
+      return -1;
+    }
+
     List<Object> result(EvalEnv env);
   }
 
+  /** Computes the value of an aggregate function for one group, one row at
+   * a time. */
+  public interface Accumulator {
+    /** Adds a row; {@code env} contains the variables of the row, and
+     * {@code row} is the row as it would be buffered, or null if the
+     * {@code group} is not buffering rows. */
+    void add(EvalEnv env, Object row);
+
+    /** Returns the value of the aggregate function. */
+    Object result(EvalEnv env);
+  }
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_COUNT}. */
+  private static class CountAccumulator implements Accumulator {
+    int count;
+
+    public void add(EvalEnv env, Object row) {
+      ++count;
+    }
+
+    public Object result(EvalEnv env) {
+      return count;
+    }
+  }
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_SUM} of type {@code int}. */
+  private static class SumIntAccumulator implements Accumulator {
+    final Code argumentCode;
+    int sum;
+
+    SumIntAccumulator(Code argumentCode) {
+      this.argumentCode = Objects.requireNonNull(argumentCode);
+    }
+
+    public void add(EvalEnv env, Object row) {
+      sum += (Integer) argumentCode.eval(env);
+    }
+
+    public Object result(EvalEnv env) {
+      return sum;
+    }
+  }
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_SUM} of type {@code real}. */
+  private static class SumRealAccumulator implements Accumulator {
+    final Code argumentCode;
+    float sum;
+
+    SumRealAccumulator(Code argumentCode) {
+      this.argumentCode = Objects.requireNonNull(argumentCode);
+    }
+
+    public void add(EvalEnv env, Object row) {
+      sum += (Float) argumentCode.eval(env);
+    }
+
+    public Object result(EvalEnv env) {
+      return sum;
+    }
+  }
+
+  /** Accumulator for {@link BuiltIn#RELATIONAL_MIN} and
+   * {@link BuiltIn#RELATIONAL_MAX}. Like {@link Ordering#min} and
+   * {@link Ordering#max}, keeps the first of several equal values. */
+  private static class MinMaxAccumulator implements Accumulator {
+    final Code argumentCode;
+    /** -1 for min, 1 for max. */
+    final int direction;
+    Comparable value;
+
+    MinMaxAccumulator(Code argumentCode, int direction) {
+      this.argumentCode = Objects.requireNonNull(argumentCode);
+      this.direction = direction;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void add(EvalEnv env, Object row) {
+      final Comparable v = (Comparable) argumentCode.eval(env);
+      if (value == null || Integer.signum(v.compareTo(value)) == direction) {
+        value = v;
+      }
+    }
+
+    public Object result(EvalEnv env) {
+      return value;
+    }
+  }
+
+  /** Accumulator that buffers rows and applies an aggregate function to
+   * them. */
+  private static class BufferingAccumulator implements Accumulator {
+    final Applicable aggregate;
+    final List<Object> rows = new ArrayList<>();
+
+    BufferingAccumulator(Applicable aggregate) {
+      this.aggregate = Objects.requireNonNull(aggregate);
+    }
+
+    public void add(EvalEnv env, Object row) {
+      rows.add(row);
+    }
+
+    public Object result(EvalEnv env) {
+      return aggregate.apply(env, rows);
+    }
+  }
+
   /** Implementation of {@link RowSink} for a {@code where} clause. */
   static class WhereRowSink implements RowSink {
     final Code filterCode;
@@ -1104,12 +2412,58 @@ public abstract class Codes {
       this.rowSink = rowSink;
     }
 
+    public void start(EvalEnv env) {
+      rowSink.start(env);
+    }
+
     public void accept(EvalEnv env) {
       if ((Boolean) filterCode.eval(env)) {
         rowSink.accept(env);
       }
     }
 
+    public boolean isDone() {
+      return rowSink.isDone();
+    }
+
+    public List<Object> result(EvalEnv env) {
+      return rowSink.result(env);
+    }
+  }
+
+  /** Implementation of {@link RowSink} for a {@code take} clause. */
+  static class TakeRowSink implements RowSink {
+    final Code countCode;
+    final RowSink rowSink;
+    /** Number of rows that may still be passed to the next step. */
+    int remaining;
+
+    TakeRowSink(Code countCode, RowSink rowSink) {
+      this.countCode = Objects.requireNonNull(countCode);
+      this.rowSink = Objects.requireNonNull(rowSink);
+    }
+
+    public void start(EvalEnv env) {
+      remaining = Math.max(0, (Integer) countCode.eval(env));
+      rowSink.start(env);
+    }
+
+    public void accept(EvalEnv env) {
+      if (remaining > 0) {
+        --remaining;
+        rowSink.accept(env);
+      }
+    }
+
+    public boolean isDone() {
+      return remaining == 0 || rowSink.isDone();
+    }
+
+    public int limit() {
+      final int limit = rowSink.limit();
+      return limit < 0 ? remaining : Math.min(remaining, limit);
+    }
+
     public List<Object> result(EvalEnv env) {
       return rowSink.result(env);
     }
@@ -1118,106 +2472,209 @@ public abstract class Codes {
   /** Implementation of {@link RowSink} for a {@code group} clause. */
   private static class GroupRowSink implements RowSink {
     final Code keyCode;
-    final ImmutableList<String> inNames;
+    /** Codes that read the value of each input variable. */
+    final ImmutableList<Code> inCodes;
     /** group names followed by aggregate names */
     final ImmutableList<String> outNames;
-    final ImmutableList<Applicable> aggregateCodes;
+    final ImmutableList<Supplier<Accumulator>> accumulatorFactories;
+    /** Whether any accumulator needs the rows. */
+    final boolean buffer;
     final RowSink rowSink;
-    final ListMultimap<Object, Object> map = ArrayListMultimap.create();
+    /** For each group key, an accumulator for each aggregate function. */
+    final Map<Object, Accumulator[]> map = new HashMap<>();
     final Object[] values;
 
-    GroupRowSink(Code keyCode, ImmutableList<Applicable> aggregateCodes,
-        ImmutableList<String> inNames, ImmutableList<String> outNames,
-        RowSink rowSink) {
+    GroupRowSink(Code keyCode,
+        ImmutableList<Supplier<Accumulator>> accumulatorFactories,
+        boolean buffer, ImmutableList<Code> inCodes,
+        ImmutableList<String> outNames, RowSink rowSink) {
       this.keyCode = Objects.requireNonNull(keyCode);
-      this.aggregateCodes = Objects.requireNonNull(aggregateCodes);
-      this.inNames = Objects.requireNonNull(inNames);
+      this.accumulatorFactories = Objects.requireNonNull(accumulatorFactories);
+      this.buffer = buffer;
+      this.inCodes = Objects.requireNonNull(inCodes);
       this.outNames = Objects.requireNonNull(outNames);
       this.rowSink = Objects.requireNonNull(rowSink);
-      this.values = inNames.size() == 1 ? null : new Object[inNames.size()];
+      this.values = inCodes.size() == 1 ? null : new Object[inCodes.size()];
+    }
+
+    public void start(EvalEnv env) {
+      rowSink.start(env);
+    }
+
+    public boolean isDone() {
+      return false;
     }
 
     public void accept(EvalEnv env) {
-      if (inNames.size() == 1) {
-        map.put(keyCode.eval(env), env.getOpt(inNames.get(0)));
+      final Object key = keyCode.eval(env);
+      Accumulator[] accumulators = map.get(key);
+      if (accumulators == null) {
+        accumulators = new Accumulator[accumulatorFactories.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+          accumulators[i] = accumulatorFactories.get(i).get();
+        }
+        map.put(key, accumulators);
+      }
+      final Object row;
+      if (!buffer) {
+        row = null;
+      } else if (inCodes.size() == 1) {
+        row = inCodes.get(0).eval(env);
       } else {
-        for (int i = 0; i < inNames.size(); i++) {
-          values[i] = env.getOpt(inNames.get(i));
+        for (int i = 0; i < inCodes.size(); i++) {
+          values[i] = inCodes.get(i).eval(env);
         }
-        map.put(keyCode.eval(env), values.clone());
+        row = values.clone();
+      }
+      for (Accumulator accumulator : accumulators) {
+        accumulator.add(env, row);
       }
     }
 
     public List<Object> result(EvalEnv env) {
-      final EvalEnv env0 = env;
-      EvalEnv env2 = env0;
-      final MutableEvalEnv[] groupEnvs = new MutableEvalEnv[outNames.size()];
-      int i = 0;
-      for (String name : outNames) {
-        env2 = groupEnvs[i++] = env2.bindMutable(name);
-      }
-      for (Map.Entry<Object, List<Object>> entry
-          : Multimaps.asMap(map).entrySet()) {
+      // Each group is passed to the next step in an environment that has one
+      // slot for each group key and aggregate.
+      final MutableEvalEnv env2 = env.bindMutableArray(outNames);
+      for (Map.Entry<Object, Accumulator[]> entry : map.entrySet()) {
         final List list = (List) entry.getKey();
+        final Object[] outValues = new Object[outNames.size()];
+        int i;
         for (i = 0; i < list.size(); i++) {
-          groupEnvs[i].set(list.get(i));
+          outValues[i] = list.get(i);
         }
-        final List<Object> rows = entry.getValue(); // rows in this bucket
-        for (Applicable aggregateCode : aggregateCodes) {
-          groupEnvs[i++].set(aggregateCode.apply(env, rows));
+        for (Accumulator accumulator : entry.getValue()) {
+          outValues[i++] = accumulator.result(env);
         }
+        env2.set(outValues.length == 1 ? outValues[0] : outValues);
         rowSink.accept(env2);
       }
-      return rowSink.result(env0);
+      return rowSink.result(env);
     }
   }
 
   /** Implementation of {@link RowSink} for an {@code order} clause. */
   static class OrderRowSink implements RowSink {
-    final List<Pair<Code, Boolean>> codes;
+    /** Code for each sort key. */
+    final Code[] keyCodes;
+    /** Comparator for each sort key. */
+    final Comparator<Object>[] comparators;
     final ImmutableList<String> names;
+    /** Codes that read the value of each input variable. */
+    final ImmutableList<Code> inCodes;
     final RowSink rowSink;
     final List<Object> rows = new ArrayList<>();
     final Object[] values;
-
-    OrderRowSink(List<Pair<Code, Boolean>> codes,
-        ImmutableList<String> names, RowSink rowSink) {
-      this.codes = codes;
+    /** Environment in which sort keys are evaluated; set in
+     * {@link #start}. */
+    MutableEvalEnv env2;
+    /** Maximum number of rows to keep, or -1 to keep all rows; the limit of
+     * the next sink. */
+    int limit = -1;
+    /** If there is a limit, a heap of the best rows so far, whose head is
+     * the row that would be sorted last. */
+    PriorityQueue<Object[]> heap;
+    /** If there is a limit, the number of rows seen so far. */
+    int count;
+
+    @SuppressWarnings("unchecked")
+    OrderRowSink(List<Pair<Code, Comparator<Object>>> codes,
+        ImmutableList<String> names, ImmutableList<Code> inCodes,
+        RowSink rowSink) {
+      this.keyCodes = Pair.left(codes).toArray(new Code[0]);
+      this.comparators = Pair.right(codes).toArray(new Comparator[0]);
       this.names = names;
+      this.inCodes = inCodes;
       this.rowSink = rowSink;
       this.values = names.size() == 1 ? null : new Object[names.size()];
     }
 
+    public void start(EvalEnv env) {
+      env2 = env.bindMutableArray(names);
+      rowSink.start(env);
+      limit = rowSink.limit();
+      if (limit >= 0) {
+        heap = new PriorityQueue<>(Math.max(1, limit),
+            entryComparator().reversed());
+      }
+    }
+
+    public boolean isDone() {
+      return false;
+    }
+
     public void accept(EvalEnv env) {
-      if (names.size() == 1) {
-        rows.add(env.getOpt(names.get(0)));
+      final Object row;
+      if (inCodes.size() == 1) {
+        row = inCodes.get(0).eval(env);
       } else {
-        for (int i = 0; i < names.size(); i++) {
-          values[i] = env.getOpt(names.get(i));
+        for (int i = 0; i < inCodes.size(); i++) {
+          values[i] = inCodes.get(i).eval(env);
         }
-        rows.add(values.clone());
+        row = values.clone();
+      }
+      if (heap == null) {
+        rows.add(row);
+        return;
+      }
+      // Keep the best "limit" rows. Entries that compare equal are ordered
+      // by arrival, so the result is the same as a stable sort.
+      if (limit == 0) {
+        return;
+      }
+      final Object[] entry = entry(row, count++);
+      if (heap.size() < limit) {
+        heap.add(entry);
+      } else if (heap.comparator().compare(entry, heap.peek()) > 0) {
+        heap.poll();
+        heap.add(entry);
       }
     }
 
-    public List<Object> result(final EvalEnv env) {
-      final MutableEvalEnv leftEnv = env.bindMutableArray(names);
-      final MutableEvalEnv rightEnv = env.bindMutableArray(names);
-      rows.sort((left, right) -> {
-        leftEnv.set(left);
-        rightEnv.set(right);
-        for (Pair<Code, Boolean> code : codes) {
-          final Comparable leftVal = (Comparable) code.left.eval(leftEnv);
-          final Comparable rightVal = (Comparable) code.left.eval(rightEnv);
-          int c = leftVal.compareTo(rightVal);
+    /** Creates an entry that holds the sort keys of a row, followed by the
+     * row and its ordinal. */
+    private Object[] entry(Object row, int ordinal) {
+      final int n = keyCodes.length;
+      final Object[] entry = new Object[n + 2];
+      env2.set(row);
+      for (int i = 0; i < n; i++) {
+        entry[i] = keyCodes[i].eval(env2);
+      }
+      entry[n] = row;
+      entry[n + 1] = ordinal;
+      return entry;
+    }
+
+    /** Returns a comparator that compares entries by their sort keys, then
+     * by their ordinal. */
+    private Comparator<Object[]> entryComparator() {
+      final int n = keyCodes.length;
+      return (left, right) -> {
+        for (int i = 0; i < n; i++) {
+          final int c = comparators[i].compare(left[i], right[i]);
           if (c != 0) {
-            return code.right ? -c : c;
+            return c;
           }
         }
-        return 0;
-      });
-      for (Object row : rows) {
-        leftEnv.set(row);
-        rowSink.accept(leftEnv);
+        return Integer.compare((Integer) left[n + 1], (Integer) right[n + 1]);
+      };
+    }
+
+    public List<Object> result(final EvalEnv env) {
+      // Evaluate the sort keys of each row once, then sort the entries.
+      final Object[][] entries;
+      if (heap == null) {
+        entries = new Object[rows.size()][];
+        for (int r = 0; r < entries.length; r++) {
+          entries[r] = entry(rows.get(r), r);
+        }
+      } else {
+        entries = heap.toArray(new Object[0][]);
+      }
+      Arrays.sort(entries, entryComparator());
+      final int n = keyCodes.length;
+      for (Object[] entry : entries) {
+        env2.set(entry[n]);
+        rowSink.accept(env2);
       }
       return rowSink.result(env);
     }
@@ -1225,29 +2682,65 @@ public abstract class Codes {
 
   /** Implementation of {@link RowSink} for a {@code yield} clause. */
   private static class YieldRowSink implements RowSink {
-    final List<Object> list;
+    /** Builds an immutable list, so that elements can be prepended to the
+     * result without copying it (see {@link ConsList}). */
+    final ImmutableList.Builder<Object> list = ImmutableList.builder();
     private final Code yieldCode;
 
     YieldRowSink(Code yieldCode) {
       this.yieldCode = yieldCode;
-      list = new ArrayList<>();
+    }
+
+    public void start(EvalEnv env) {
     }
 
     public void accept(EvalEnv env) {
       list.add(yieldCode.eval(env));
     }
 
+    public boolean isDone() {
+      return false;
+    }
+
     public List<Object> result(EvalEnv env) {
-      return list;
+      return list.build();
     }
   }
 
-  /** Code that retrieves the value of a variable from the environment. */
+  /** Code whose value is an {@code int}. Sub-classes implement
+   * {@link #evalInt(EvalEnv)}, and {@link #eval(EvalEnv)} boxes its result. */
+  private abstract static class IntCode implements Code {
+    public Object eval(EvalEnv env) {
+      return evalInt(env);
+    }
+
+    @Override public abstract int evalInt(EvalEnv env);
+  }
+
+  /** Code whose value is a {@code real}. Sub-classes implement
+   * {@link #evalReal(EvalEnv)}, and {@link #eval(EvalEnv)} boxes its
+   * result. */
+  private abstract static class RealCode implements Code {
+    public Object eval(EvalEnv env) {
+      return evalReal(env);
+    }
+
+    @Override public abstract float evalReal(EvalEnv env);
+  }
+
+  /** Code that retrieves the value of a variable from the environment.
+   *
+   * <p>The location of the variable was resolved at compile time, so
+   * evaluation does not need to search for the variable by name. */
   private static class GetCode implements Code {
     private final String name;
+    private final int depth;
+    private final int index;
 
-    GetCode(String name) {
+    GetCode(String name, int depth, int index) {
       this.name = Objects.requireNonNull(name);
+      this.depth = depth;
+      this.index = index;
     }
 
     @Override public String toString() {
@@ -1255,7 +2748,7 @@ public abstract class Codes {
     }
 
     public Object eval(EvalEnv env) {
-      return env.getOpt(name);
+      return env.getSlot(depth, index);
     }
   }
 }
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/** Value of an algebraic data type, created by applying a type constructor
+ * to an argument.
+ *
+ * <p>For example, if {@code datatype 'a tree = Empty | Node of 'a * 'a tree},
+ * then {@code Empty} has tag 0 and no argument, and
+ * {@code Node (1, Empty)} has tag 1 and argument {@code [1, [Empty]]}. The
+ * tag is the ordinal of the type constructor in
+ * {@link net.hydromatic.morel.type.DataType#typeConstructors}, so that
+ * matching a constructor pattern is an int comparison. */
+public final class DataValue implements Comparable<DataValue> {
+  /** Ordinal of the type constructor within its data type. */
+  public final int tag;
+  /** Name of the type constructor. Used when printing. */
+  public final String name;
+  /** Argument; null if the type constructor has no argument. */
+  public final @Nullable Object arg;
+
+  public DataValue(int tag, String name, @Nullable Object arg) {
+    this.tag = tag;
+    this.name = Objects.requireNonNull(name);
+    this.arg = arg;
+  }
+
+  /** Prints as a list, "[name]" or "[name, arg]". */
+  @Override public String toString() {
+    return arg == null
+        ? "[" + name + "]"
+        : "[" + name + ", " + arg + "]";
+  }
+
+  @Override public int hashCode() {
+    return tag * 31 + Objects.hashCode(arg);
+  }
+
+  @Override public boolean equals(Object o) {
+    return o == this
+        || o instanceof DataValue
+        && tag == ((DataValue) o).tag
+        && Objects.equals(arg, ((DataValue) o).arg);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override public int compareTo(DataValue o) {
+    final int c = Integer.compare(tag, o.tag);
+    if (c != 0 || arg == null) {
+      return c;
+    }
+    return ((Comparable) arg).compareTo(o.arg);
+  }
+}
+
+// End DataValue.java
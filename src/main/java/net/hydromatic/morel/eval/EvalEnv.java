@@ -18,10 +18,8 @@
  */
 package net.hydromatic.morel.eval;
 
-import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.compile.Environment;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +35,14 @@ public interface EvalEnv {
   /** Returns the binding of {@code name} if bound, null if not. */
   Object getOpt(String name);
 
+  /** Returns the value in slot {@code index} of the environment that is
+   * {@code depth} levels above this one.
+   *
+   * <p>Slots are assigned by the compiler, which knows the shape of the
+   * environment at each point in the program; evaluating a variable
+   * therefore does not require a search by name. */
+  Object getSlot(int depth, int index);
+
   /** Creates an environment that has the same content as this one, plus
    * the binding (name, value). */
   default EvalEnv bind(String name, Object value) {
@@ -49,22 +55,6 @@ public interface EvalEnv {
     return new EvalEnvs.MutableSubEvalEnv(this, name);
   }
 
-  /** Creates an evaluation environment that has the same content as this one,
-   * plus mutable slots for each name in a pattern. */
-  default MutableEvalEnv bindMutablePat(Ast.Pat pat) {
-    if (pat instanceof Ast.IdPat) {
-      // Pattern is simple; use a simple implementation.
-      return bindMutable(((Ast.IdPat) pat).name);
-    }
-    final List<String> names = new ArrayList<>();
-    pat.visit(p -> {
-      if (p instanceof Ast.IdPat) {
-        names.add(((Ast.IdPat) p).name);
-      }
-    });
-    return new EvalEnvs.MutablePatSubEvalEnv(this, pat, names);
-  }
-
   /** Creates an evaluation environment that has the same content as this one,
    * plus a mutable slot or slots.
    *
@@ -22,15 +22,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import net.hydromatic.morel.ast.Ast;
-import net.hydromatic.morel.util.Pair;
+import net.hydromatic.morel.type.TypeSystem;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /** Helpers for {@link EvalEnv}. */
 public class EvalEnvs {
+  /** Evaluation environment that contains no variables. */
+  static final EvalEnv EMPTY = new MapEvalEnv(ImmutableMap.of());
+
   /** Creates an evaluation environment with the given (name, value) map. */
   public static EvalEnv copyOf(Map<String, Object> valueMap) {
     return new MapEvalEnv(valueMap);
@@ -38,6 +43,31 @@ public class EvalEnvs {
 
   private EvalEnvs() {}
 
+  /** Returns a function that, given an evaluation environment, creates an
+   * environment that has the same content plus mutable slots for each name in
+   * a pattern.
+   *
+   * <p>The pattern is compiled once, when this method is called, rather than
+   * each time the function is applied.
+   *
+   * @see EvalEnv#bindMutable(String) */
+  static Function<EvalEnv, MutableEvalEnv> mutableBinder(
+      TypeSystem typeSystem, Ast.Pat pat) {
+    if (pat instanceof Ast.IdPat) {
+      // Pattern is simple; use a simple implementation.
+      final String name = ((Ast.IdPat) pat).name;
+      return env -> env.bindMutable(name);
+    }
+    final List<String> names = new ArrayList<>();
+    pat.visit(p -> {
+      if (p instanceof Ast.IdPat) {
+        names.add(((Ast.IdPat) p).name);
+      }
+    });
+    final Matcher matcher = Matchers.of(typeSystem, pat, 0);
+    return env -> new MutablePatSubEvalEnv(env, matcher, names);
+  }
+
   /** Evaluation environment that inherits from a parent environment and adds
    * one binding. */
   static class SubEvalEnv implements EvalEnv {
@@ -72,6 +102,12 @@ public class EvalEnvs {
         }
       }
     }
+
+    public Object getSlot(int depth, int index) {
+      return depth == 0
+          ? value
+          : parentEnv.getSlot(depth - 1, index);
+    }
   }
 
   /** Similar to {@link SubEvalEnv} but mutable. */
@@ -119,18 +155,23 @@ public class EvalEnvs {
       }
       return parentEnv.getOpt(name);
     }
+
+    public Object getSlot(int depth, int index) {
+      return depth == 0
+          ? values[index]
+          : parentEnv.getSlot(depth - 1, index);
+    }
   }
 
   /** Evaluation environment that binds several slots based on a pattern. */
   static class MutablePatSubEvalEnv extends MutableArraySubEvalEnv {
-    private final Ast.Pat pat;
-    private int slot;
+    private final Matcher matcher;
 
-    MutablePatSubEvalEnv(EvalEnv parentEnv, Ast.Pat pat, List<String> names) {
+    MutablePatSubEvalEnv(EvalEnv parentEnv, Matcher matcher,
+        List<String> names) {
       super(parentEnv, names);
-      this.pat = pat;
+      this.matcher = matcher;
       this.values = new Object[names.size()];
-      assert !(pat instanceof Ast.IdPat);
     }
 
     @Override public void set(Object value) {
@@ -142,95 +183,53 @@ public class EvalEnvs {
     }
 
     @Override public boolean setOpt(Object value) {
-      slot = 0;
-      return bindRecurse(pat, value);
+      return matcher.match(values, value);
     }
+  }
 
-    boolean bindRecurse(Ast.Pat pat, Object argValue) {
-      final List<Object> listValue;
-      final Ast.LiteralPat literalPat;
-      switch (pat.op) {
-      case ID_PAT:
-        this.values[slot++] = argValue;
-        return true;
-
-      case WILDCARD_PAT:
-        return true;
-
-      case BOOL_LITERAL_PAT:
-      case CHAR_LITERAL_PAT:
-      case STRING_LITERAL_PAT:
-        literalPat = (Ast.LiteralPat) pat;
-        return literalPat.value.equals(argValue);
-
-      case INT_LITERAL_PAT:
-        literalPat = (Ast.LiteralPat) pat;
-        return ((BigDecimal) literalPat.value).intValue() == (Integer) argValue;
-
-      case REAL_LITERAL_PAT:
-        literalPat = (Ast.LiteralPat) pat;
-        return ((BigDecimal) literalPat.value).doubleValue() == (Double) argValue;
-
-      case TUPLE_PAT:
-        final Ast.TuplePat tuplePat = (Ast.TuplePat) pat;
-        listValue = (List) argValue;
-        for (Pair<Ast.Pat, Object> pair : Pair.zip(tuplePat.args, listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
-
-      case RECORD_PAT:
-        final Ast.RecordPat recordPat = (Ast.RecordPat) pat;
-        listValue = (List) argValue;
-        for (Pair<Ast.Pat, Object> pair
-            : Pair.zip(recordPat.args.values(), listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
+  /** Evaluation environment that has a fixed number of slots.
+   *
+   * <p>The compiler creates a frame for each invocation of a function, and
+   * for each "let" that is not inside a function, and allocates in it one
+   * slot for each variable bound in that scope. Slots are not named; they
+   * are accessed via {@link #getSlot(int, int)}.
+   *
+   * <p>A {@link Closure} also uses a frame to hold the values that it has
+   * captured. */
+  static class FrameEvalEnv implements EvalEnv {
+    private final EvalEnv parentEnv;
+    final Object[] values;
 
-      case LIST_PAT:
-        final Ast.ListPat listPat = (Ast.ListPat) pat;
-        listValue = (List) argValue;
-        if (listValue.size() != listPat.args.size()) {
-          return false;
-        }
-        for (Pair<Ast.Pat, Object> pair : Pair.zip(listPat.args, listValue)) {
-          if (!bindRecurse(pair.left, pair.right)) {
-            return false;
-          }
-        }
-        return true;
-
-      case CONS_PAT:
-        final Ast.InfixPat infixPat = (Ast.InfixPat) pat;
-        @SuppressWarnings("unchecked") final List<Object> consValue =
-            (List) argValue;
-        if (consValue.isEmpty()) {
-          return false;
-        }
-        final Object head = consValue.get(0);
-        final List<Object> tail = consValue.subList(1, consValue.size());
-        return bindRecurse(infixPat.p0, head)
-            && bindRecurse(infixPat.p1, tail);
-
-      case CON0_PAT:
-        final Ast.Con0Pat con0Pat = (Ast.Con0Pat) pat;
-        final List con0Value = (List) argValue;
-        return con0Value.get(0).equals(con0Pat.tyCon.name);
-
-      case CON_PAT:
-        final Ast.ConPat conPat = (Ast.ConPat) pat;
-        final List conValue = (List) argValue;
-        return conValue.get(0).equals(conPat.tyCon.name)
-            && bindRecurse(conPat.pat, conValue.get(1));
-
-      default:
-        throw new AssertionError("cannot compile " + pat.op + ": " + pat);
-      }
+    FrameEvalEnv(EvalEnv parentEnv, int size) {
+      this(parentEnv, new Object[size]);
+    }
+
+    FrameEvalEnv(EvalEnv parentEnv, Object[] values) {
+      this.parentEnv = parentEnv;
+      this.values = values;
+    }
+
+    @Override public String toString() {
+      return Arrays.toString(values);
+    }
+
+    public Object getOpt(String name) {
+      return parentEnv.getOpt(name);
+    }
+
+    public Object getSlot(int depth, int index) {
+      return depth == 0
+          ? values[index]
+          : parentEnv.getSlot(depth - 1, index);
+    }
+
+    public void visit(BiConsumer<String, Object> consumer) {
+      parentEnv.visit(consumer);
+    }
+
+    /** Assigns a slot. */
+    void set(int index, Object value) {
+      values[index] = value;
     }
   }
 
@@ -253,6 +252,12 @@ public class EvalEnvs {
     public void visit(BiConsumer<String, Object> consumer) {
       valueMap.forEach(consumer);
     }
+
+    public Object getSlot(int depth, int index) {
+      // The root environment contains only global values, and the compiler
+      // converts references to global values into constants.
+      throw new AssertionError("no slot " + index + " at depth " + depth);
+    }
   }
 }
 
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/** Counts the invocations of a function, and promotes the function from
+ * the interpreter to a faster tier when it has been invoked often enough.
+ *
+ * <p>Every {@link Closure} for the function shares the same profile. While
+ * the function is in the {@link Tier#INTERPRETED} tier, the closure
+ * evaluates its own code. When the count reaches the threshold, the profile
+ * calls its compiler; if the compiler succeeds, the function moves to the
+ * {@link Tier#COMPILED} tier, and from then on the closure applies the
+ * compiled code instead. If the compiler returns null or throws, the
+ * function moves to the {@link Tier#NOT_COMPILABLE} tier, and remains
+ * interpreted.
+ *
+ * <p>Several threads may invoke the function at the same time (for example,
+ * from {@code List.parMap}); the count is a {@link LongAdder}, so no
+ * invocations are lost, and promotion happens at most once. */
+public final class FunctionProfile {
+  public final String name;
+  private final int threshold;
+  private final Supplier<Applicable> compiler;
+
+  private final LongAdder count = new LongAdder();
+  private volatile Tier tier = Tier.INTERPRETED;
+  /** Compiled code; not null if and only if the tier is
+   * {@link Tier#COMPILED}. */
+  private volatile @Nullable Applicable compiled;
+
+  /** Creates a FunctionProfile.
+   *
+   * @param name Name of the function
+   * @param threshold Number of invocations after which to compile
+   * @param compiler Compiles the function, or returns null if the function
+   *   cannot be compiled
+   */
+  public FunctionProfile(String name, int threshold,
+      Supplier<Applicable> compiler) {
+    this.name = Objects.requireNonNull(name);
+    this.threshold = threshold;
+    this.compiler = Objects.requireNonNull(compiler);
+  }
+
+  @Override public String toString() {
+    return name + " (" + count.sum() + " calls, " + tier + ")";
+  }
+
+  /** Returns the number of times the function has been invoked. When the
+   * function has been compiled, calls that the compiled code makes to itself
+   * are not counted. */
+  public long count() {
+    return count.sum();
+  }
+
+  /** Returns the tier in which the function is currently executing. */
+  public Tier tier() {
+    return tier;
+  }
+
+  /** Records an invocation, and returns the compiled code that the caller
+   * should apply instead of interpreting, or null to interpret.
+   *
+   * <p>Summing the count is more expensive than incrementing it, so we only
+   * compare it with the threshold while the function is interpreted. */
+  @Nullable Applicable invoke() {
+    count.increment();
+    if (tier == Tier.INTERPRETED && count.sum() >= threshold) {
+      promote();
+    }
+    return compiled;
+  }
+
+  private synchronized void promote() {
+    if (tier != Tier.INTERPRETED) {
+      return; // another thread got here first
+    }
+    Applicable applicable;
+    try {
+      applicable = compiler.get();
+    } catch (RuntimeException e) {
+      // Compiling must not change the result of the program, so if the
+      // compiler fails, we keep interpreting (and do not try again).
+      applicable = null;
+    }
+    if (applicable == null) {
+      tier = Tier.NOT_COMPILABLE;
+    } else {
+      compiled = applicable;
+      tier = Tier.COMPILED;
+    }
+  }
+
+  /** Tier in which a function executes. */
+  public enum Tier {
+    /** The function is interpreted, and will be compiled when it has been
+     * invoked often enough. */
+    INTERPRETED("interpreted"),
+    /** The function has been compiled. */
+    COMPILED("compiled"),
+    /** The function is interpreted, because an attempt to compile it
+     * failed. */
+    NOT_COMPILABLE("not compilable");
+
+    /** Name, as returned by {@code Sys.profile}. */
+    public final String description;
+
+    Tier(String description) {
+      this.description = description;
+    }
+  }
+}
+
+// End FunctionProfile.java
@@ -0,0 +1,36 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+/** A compiled pattern, that can be matched against a value.
+ *
+ * <p>The variables of the pattern have been assigned slots at compile time;
+ * if the match succeeds, the matcher has written the value of each variable
+ * into its slot.
+ *
+ * @see Matchers */
+public interface Matcher {
+  /** Matches a value, writing the values of variables into {@code slots},
+   * and returns whether the value matched.
+   *
+   * <p>If the match fails, some slots may have been written. */
+  boolean match(Object[] slots, Object value);
+}
+
+// End Matcher.java
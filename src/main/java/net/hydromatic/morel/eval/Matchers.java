@@ -0,0 +1,481 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import net.hydromatic.morel.ast.Ast;
+import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.TypeSystem;
+import net.hydromatic.morel.util.ConsList;
+import net.hydromatic.morel.util.Pair;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/** Compiles patterns into {@link Matcher} objects. */
+public abstract class Matchers {
+  private Matchers() {}
+
+  /** Matcher that matches any value and binds no variables. */
+  private static final Matcher ANY = (slots, value) -> true;
+
+  /** Compiles a pattern into a matcher that binds the variables of the
+   * pattern, in the order that {@link Ast.Pat#visit} visits them, to
+   * successive slots starting at {@code offset}. */
+  public static Matcher of(TypeSystem typeSystem, Ast.Pat pat, int offset) {
+    return new PatCompiler(typeSystem, offset).compile(pat);
+  }
+
+  /** Compiles the arms of a match. */
+  public static Arms arms(TypeSystem typeSystem,
+      ImmutableList<Pair<Ast.Pat, Code>> patCodes) {
+    return new Arms(typeSystem, patCodes, 0);
+  }
+
+  /** Compiles the arms of a match whose variables are bound to slots
+   * starting at {@code offset}. */
+  public static Arms arms(TypeSystem typeSystem,
+      ImmutableList<Pair<Ast.Pat, Code>> patCodes, int offset) {
+    return new Arms(typeSystem, patCodes, offset);
+  }
+
+  /** Returns the tag of the values created by a type constructor. */
+  private static int tag(TypeSystem typeSystem, Ast.Id tyCon) {
+    return typeSystem.lookupTyCon(tyCon.name).left.ordinal(tyCon.name);
+  }
+
+  /** Compiles patterns, allocating a slot for each variable. */
+  private static class PatCompiler {
+    private final TypeSystem typeSystem;
+    private int slot;
+
+    PatCompiler(TypeSystem typeSystem, int offset) {
+      this.typeSystem = typeSystem;
+      this.slot = offset;
+    }
+
+    Matcher compile(Ast.Pat pat) {
+      final Ast.LiteralPat literalPat;
+      switch (pat.op) {
+      case ID_PAT:
+        final int i = slot++;
+        return (slots, value) -> {
+          slots[i] = value;
+          return true;
+        };
+
+      case WILDCARD_PAT:
+        return ANY;
+
+      case ANNOTATED_PAT:
+        return compile(((Ast.AnnotatedPat) pat).pat);
+
+      case BOOL_LITERAL_PAT:
+      case CHAR_LITERAL_PAT:
+      case STRING_LITERAL_PAT:
+        literalPat = (Ast.LiteralPat) pat;
+        final Object literal = literalPat.value;
+        return (slots, value) -> literal.equals(value);
+
+      case INT_LITERAL_PAT:
+        literalPat = (Ast.LiteralPat) pat;
+        final int intLiteral = ((BigDecimal) literalPat.value).intValue();
+        return (slots, value) -> (Integer) value == intLiteral;
+
+      case REAL_LITERAL_PAT:
+        literalPat = (Ast.LiteralPat) pat;
+        final float realLiteral = ((BigDecimal) literalPat.value).floatValue();
+        return (slots, value) -> (Float) value == realLiteral;
+
+      case TUPLE_PAT:
+        return compileFields(((Ast.TuplePat) pat).args);
+
+      case RECORD_PAT:
+        return compileFields(((Ast.RecordPat) pat).args.values());
+
+      case LIST_PAT:
+        final Ast.ListPat listPat = (Ast.ListPat) pat;
+        final int size = listPat.args.size();
+        final Matcher elements = compileFields(listPat.args);
+        return (slots, value) -> ((List) value).size() == size
+            && elements.match(slots, value);
+
+      case CONS_PAT:
+        final Ast.InfixPat infixPat = (Ast.InfixPat) pat;
+        final Matcher head = compile(infixPat.p0);
+        final Matcher tail = compile(infixPat.p1);
+        if (tail == ANY) {
+          // No need to create a sub-list for the tail
+          return (slots, value) -> {
+            final List list = (List) value;
+            return !list.isEmpty()
+                && head.match(slots, list.get(0));
+          };
+        }
+        return (slots, value) -> {
+          final List list = (List) value;
+          return !list.isEmpty()
+              && head.match(slots, list.get(0))
+              && tail.match(slots, ConsList.tail(list));
+        };
+
+      case CON0_PAT:
+        final int con0Tag = tag(typeSystem, ((Ast.Con0Pat) pat).tyCon);
+        return (slots, value) -> ((DataValue) value).tag == con0Tag;
+
+      case CON_PAT:
+        final Ast.ConPat conPat = (Ast.ConPat) pat;
+        final int conTag = tag(typeSystem, conPat.tyCon);
+        final Matcher arg = compile(conPat.pat);
+        if (arg == ANY) {
+          return (slots, value) -> ((DataValue) value).tag == conTag;
+        }
+        return (slots, value) -> {
+          final DataValue dataValue = (DataValue) value;
+          return dataValue.tag == conTag
+              && arg.match(slots, dataValue.arg);
+        };
+
+      default:
+        throw new AssertionError("cannot compile " + pat.op + ": " + pat);
+      }
+    }
+
+    /** Compiles the patterns for the fields of a tuple, record or list.
+     * Fields whose pattern is a wildcard are not examined. */
+    private Matcher compileFields(Iterable<Ast.Pat> pats) {
+      final List<Integer> ordinals = new ArrayList<>();
+      final List<Matcher> matchers = new ArrayList<>();
+      int ordinal = 0;
+      for (Ast.Pat pat : pats) {
+        final Matcher matcher = compile(pat);
+        if (matcher != ANY) {
+          ordinals.add(ordinal);
+          matchers.add(matcher);
+        }
+        ++ordinal;
+      }
+      switch (matchers.size()) {
+      case 0:
+        return ANY;
+
+      case 1:
+        final int i0 = ordinals.get(0);
+        final Matcher m0 = matchers.get(0);
+        return (slots, value) -> m0.match(slots, ((List) value).get(i0));
+
+      case 2:
+        final int j0 = ordinals.get(0);
+        final int j1 = ordinals.get(1);
+        final Matcher n0 = matchers.get(0);
+        final Matcher n1 = matchers.get(1);
+        return (slots, value) -> {
+          final List list = (List) value;
+          return n0.match(slots, list.get(j0))
+              && n1.match(slots, list.get(j1));
+        };
+
+      default:
+        final int[] ords = ordinals.stream().mapToInt(i -> i).toArray();
+        final Matcher[] ms = matchers.toArray(new Matcher[0]);
+        return (slots, value) -> {
+          final List list = (List) value;
+          for (int i = 0; i < ords.length; i++) {
+            if (!ms[i].match(slots, list.get(ords[i]))) {
+              return false;
+            }
+          }
+          return true;
+        };
+      }
+    }
+  }
+
+  /** Returns the value that a pattern requires at the top level, or null if
+   * the pattern matches any value at the top level.
+   *
+   * <p>For a constructor pattern, the key is the tag of the constructor;
+   * for a literal, the value; for a list pattern, whether the list is
+   * non-empty. Real literals are not keys, because {@code 0.0} and
+   * {@code ~0.0} are equal but their boxed values are not. */
+  private static @Nullable Object key(TypeSystem typeSystem, Ast.Pat pat) {
+    final Ast.LiteralPat literalPat;
+    switch (pat.op) {
+    case ANNOTATED_PAT:
+      return key(typeSystem, ((Ast.AnnotatedPat) pat).pat);
+    case CON0_PAT:
+      return tag(typeSystem, ((Ast.Con0Pat) pat).tyCon);
+    case CON_PAT:
+      return tag(typeSystem, ((Ast.ConPat) pat).tyCon);
+    case BOOL_LITERAL_PAT:
+    case CHAR_LITERAL_PAT:
+    case STRING_LITERAL_PAT:
+      return ((Ast.LiteralPat) pat).value;
+    case INT_LITERAL_PAT:
+      literalPat = (Ast.LiteralPat) pat;
+      return ((BigDecimal) literalPat.value).intValue();
+    case LIST_PAT:
+      return !((Ast.ListPat) pat).args.isEmpty();
+    case CONS_PAT:
+      return true;
+    default:
+      return null;
+    }
+  }
+
+  /** Returns a function that computes the key of a value, consistent with
+   * the keys that {@link #key(Ast.Pat)} computes for patterns like
+   * {@code pat}. */
+  private static Function<Object, Object> keyFunction(Ast.Pat pat) {
+    switch (pat.op) {
+    case ANNOTATED_PAT:
+      return keyFunction(((Ast.AnnotatedPat) pat).pat);
+    case CON0_PAT:
+    case CON_PAT:
+      return value -> ((DataValue) value).tag;
+    case LIST_PAT:
+    case CONS_PAT:
+      return value -> !((List) value).isEmpty();
+    default:
+      return value -> value;
+    }
+  }
+
+  /** Returns the pattern for a field of a tuple or record pattern, or null
+   * if the pattern does not constrain the field. If {@code field} is -1,
+   * returns the whole pattern. */
+  private static @Nullable Ast.Pat field(Ast.Pat pat, int field) {
+    if (field < 0) {
+      return pat;
+    }
+    switch (pat.op) {
+    case ANNOTATED_PAT:
+      return field(((Ast.AnnotatedPat) pat).pat, field);
+    case TUPLE_PAT:
+      return ((Ast.TuplePat) pat).args.get(field);
+    case RECORD_PAT:
+      return ImmutableList.copyOf(((Ast.RecordPat) pat).args.values())
+          .get(field);
+    default:
+      return null;
+    }
+  }
+
+  /** Returns the number of fields if a pattern is a tuple or record pattern,
+   * otherwise 0. */
+  private static int fieldCount(Ast.Pat pat) {
+    switch (pat.op) {
+    case ANNOTATED_PAT:
+      return fieldCount(((Ast.AnnotatedPat) pat).pat);
+    case TUPLE_PAT:
+      return ((Ast.TuplePat) pat).args.size();
+    case RECORD_PAT:
+      return ((Ast.RecordPat) pat).args.size();
+    default:
+      return 0;
+    }
+  }
+
+  /** The compiled arms of a match.
+   *
+   * <p>Each arm has a matcher and the code to evaluate if the matcher
+   * succeeds. Rather than trying each arm in turn, the arms are indexed by
+   * the value that they require at one position in the argument: the top
+   * level (say the constructor of a datatype value, or a literal) or one
+   * field of a tuple or record. At run time, that test is evaluated once,
+   * and only the arms that might match are tried. If the key is a
+   * constructor, the index is an array indexed by tag. For example, in
+   *
+   * <blockquote><pre>
+   * fun f (0, y) = a
+   *   | f (1, Leaf) = b
+   *   | f (x, Node (l, r)) = c
+   *   | f (1, y) = d
+   * </pre></blockquote>
+   *
+   * <p>the first field is the most selective; a value whose first field is 0
+   * tries arms 0 and 2, 1 tries arms 1, 2 and 3, and any other value tries
+   * just arm 2. */
+  public static final class Arms {
+    final ImmutableList<Pair<Ast.Pat, Code>> patCodes;
+    final Matcher[] matchers;
+    final Code[] codes;
+    /** Field of the argument whose key is tested; -1 for the whole
+     * argument. */
+    private final int field;
+    private final Function<Object, Object> keyFunction;
+    private final ImmutableMap<Object, int[]> armsByKey;
+    /** If the key is a constructor, the arms for each tag; otherwise
+     * null. */
+    private final int[][] armsByTag;
+    /** Arms that may match a value whose key is not in {@link #armsByKey};
+     * if there is no index, all arms. */
+    private final int[] otherArms;
+    /** If there is one arm and its pattern is a tuple pattern, a matcher for
+     * each field of the tuple; otherwise null. Binding the fields one at a
+     * time has the same effect as binding a tuple, but a caller that has the
+     * fields does not need to create the tuple. */
+    final @Nullable Matcher[] fieldMatchers;
+
+    Arms(TypeSystem typeSystem, ImmutableList<Pair<Ast.Pat, Code>> patCodes,
+        int offset) {
+      this.patCodes = patCodes;
+      final int n = patCodes.size();
+      this.matchers = new Matcher[n];
+      this.codes = new Code[n];
+      for (int i = 0; i < n; i++) {
+        matchers[i] = of(typeSystem, patCodes.get(i).left, offset);
+        codes[i] = patCodes.get(i).right;
+      }
+      this.fieldMatchers =
+          n == 1 ? fieldMatchers(typeSystem, patCodes.get(0).left, offset)
+              : null;
+
+      // Find the position where the arms' keys are the most diverse.
+      int bestField = -1;
+      int bestKeyCount = countKeys(typeSystem, -1);
+      int fieldCount = 0;
+      for (Pair<Ast.Pat, Code> patCode : patCodes) {
+        fieldCount = Math.max(fieldCount, fieldCount(patCode.left));
+      }
+      for (int field = 0; field < fieldCount; field++) {
+        final int keyCount = countKeys(typeSystem, field);
+        if (keyCount > bestKeyCount) {
+          bestField = field;
+          bestKeyCount = keyCount;
+        }
+      }
+
+      // Build the index. Each key's arms are those with the same key and
+      // those that do not require a key, in their original order.
+      final Map<Object, List<Integer>> map = new LinkedHashMap<>();
+      final List<Integer> other = new ArrayList<>();
+      Function<Object, Object> keyFunction = null;
+      DataType dataType = null;
+      for (int i = 0; i < n; i++) {
+        final Ast.Pat pat = field(patCodes.get(i).left, bestField);
+        final Object key =
+            bestKeyCount < 2 || pat == null ? null : key(typeSystem, pat);
+        if (key == null) {
+          other.add(i);
+          for (List<Integer> list : map.values()) {
+            list.add(i);
+          }
+        } else {
+          if (keyFunction == null) {
+            keyFunction = keyFunction(pat);
+            dataType = dataType(typeSystem, pat);
+          }
+          map.computeIfAbsent(key, k -> new ArrayList<>(other)).add(i);
+        }
+      }
+      final ImmutableMap.Builder<Object, int[]> b = ImmutableMap.builder();
+      map.forEach((key, list) -> b.put(key, toArray(list)));
+      this.field = bestField;
+      this.keyFunction = keyFunction;
+      this.armsByKey = b.build();
+      this.otherArms = toArray(other);
+      if (dataType != null) {
+        this.armsByTag = new int[dataType.typeConstructors.size()][];
+        for (int tag = 0; tag < armsByTag.length; tag++) {
+          armsByTag[tag] = armsByKey.getOrDefault(tag, otherArms);
+        }
+      } else {
+        this.armsByTag = null;
+      }
+    }
+
+    /** If a pattern is a tuple pattern, compiles a matcher for each field,
+     * allocating the same slots as {@link #of} would; otherwise returns
+     * null. */
+    private static @Nullable Matcher[] fieldMatchers(TypeSystem typeSystem,
+        Ast.Pat pat, int offset) {
+      switch (pat.op) {
+      case ANNOTATED_PAT:
+        return fieldMatchers(typeSystem, ((Ast.AnnotatedPat) pat).pat,
+            offset);
+      case TUPLE_PAT:
+        final PatCompiler patCompiler = new PatCompiler(typeSystem, offset);
+        return ((Ast.TuplePat) pat).args.stream()
+            .map(patCompiler::compile)
+            .toArray(Matcher[]::new);
+      default:
+        return null;
+      }
+    }
+
+    /** Returns the data type if a pattern is a constructor pattern, otherwise
+     * null. */
+    private static DataType dataType(TypeSystem typeSystem, Ast.Pat pat) {
+      switch (pat.op) {
+      case ANNOTATED_PAT:
+        return dataType(typeSystem, ((Ast.AnnotatedPat) pat).pat);
+      case CON0_PAT:
+        return typeSystem.lookupTyCon(((Ast.Con0Pat) pat).tyCon.name).left;
+      case CON_PAT:
+        return typeSystem.lookupTyCon(((Ast.ConPat) pat).tyCon.name).left;
+      default:
+        return null;
+      }
+    }
+
+    /** Returns the number of distinct keys of the arms' patterns at a
+     * given position. */
+    private int countKeys(TypeSystem typeSystem, int field) {
+      final Set<Object> keys = new HashSet<>();
+      for (Pair<Ast.Pat, Code> patCode : patCodes) {
+        final Ast.Pat pat = field(patCode.left, field);
+        final Object key = pat == null ? null : key(typeSystem, pat);
+        if (key != null) {
+          keys.add(key);
+        }
+      }
+      return keys.size();
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      return list.stream().mapToInt(i -> i).toArray();
+    }
+
+    /** Returns the ordinals of the arms that might match a value, in the
+     * order that they should be tried. */
+    int[] candidates(Object value) {
+      if (keyFunction == null) {
+        return otherArms;
+      }
+      final Object v = field < 0 ? value : ((List) value).get(field);
+      if (armsByTag != null) {
+        return armsByTag[((DataValue) v).tag];
+      }
+      final int[] arms = armsByKey.get(keyFunction.apply(v));
+      return arms != null ? arms : otherArms;
+    }
+  }
+}
+
+// End Matchers.java
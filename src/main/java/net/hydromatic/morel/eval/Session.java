@@ -0,0 +1,92 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Session.
+ *
+ * <p>Holds settings that apply to every statement executed by one
+ * {@link net.hydromatic.morel.Main} or {@link net.hydromatic.morel.Shell}. */
+public class Session {
+  /** Valid values of the {@code --backend} argument. */
+  private static final List<String> BACKENDS =
+      Arrays.asList("interpreter", "bytecode", "tiered");
+
+  /** Whether to compile functions to JVM bytecode, if possible, rather than
+   * interpreting them. Set by the command-line argument
+   * {@code --backend=bytecode}. */
+  public boolean bytecode;
+
+  /** Whether to interpret functions at first, and compile them to JVM
+   * bytecode, if possible, when they have been invoked
+   * {@link #compileThreshold} times. Set by the command-line argument
+   * {@code --backend=tiered}. */
+  public boolean tiered;
+
+  /** In the tiered backend, the number of invocations after which to compile
+   * a function. Set by the command-line argument
+   * {@code --compile-threshold=n}. */
+  public int compileThreshold = 1_000;
+
+  /** Profiles of the functions defined in this session, in order of
+   * definition. Populated only in the tiered backend, and reported by
+   * {@code Sys.profile}. */
+  public final List<FunctionProfile> profiles = new ArrayList<>();
+
+  /** Sets the properties of this session from command-line arguments.
+   *
+   * @throws IllegalArgumentException if an argument has an invalid value */
+  public void parseArgs(List<String> args) {
+    String backend = null;
+    for (String arg : args) {
+      if (arg.startsWith("--backend=")) {
+        final String value = arg.substring("--backend=".length());
+        if (!BACKENDS.contains(value)) {
+          throw new IllegalArgumentException("Invalid argument '" + arg
+              + "'; backend must be one of " + BACKENDS);
+        }
+        if (backend != null && !backend.equals(value)) {
+          throw new IllegalArgumentException("Conflicting arguments "
+              + "'--backend=" + backend + "' and '" + arg + "'");
+        }
+        backend = value;
+      } else if (arg.startsWith("--compile-threshold=")) {
+        final String value = arg.substring("--compile-threshold=".length());
+        int threshold;
+        try {
+          threshold = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          threshold = -1;
+        }
+        if (threshold <= 0) {
+          throw new IllegalArgumentException("Invalid argument '" + arg
+              + "'; compile threshold must be a positive integer");
+        }
+        compileThreshold = threshold;
+      }
+    }
+    bytecode = "bytecode".equals(backend);
+    tiered = "tiered".equals(backend);
+  }
+}
+
+// End Session.java
@@ -86,6 +86,13 @@ public class DataType extends BaseType implements NamedType {
     return name;
   }
 
+  /** Returns the ordinal of a type constructor, that is, its position in
+   * {@link #typeConstructors}. */
+  public int ordinal(String tyConName) {
+    Preconditions.checkArgument(typeConstructors.containsKey(tyConName));
+    return typeConstructors.headMap(tyConName).size();
+  }
+
   static String computeDescription(Map<String, Type> tyCons) {
     final StringBuilder buf = new StringBuilder("(");
     tyCons.forEach((tyConName, tyConType) -> {
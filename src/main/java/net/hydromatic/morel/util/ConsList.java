@@ -19,22 +19,33 @@
 package net.hydromatic.morel.util;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Objects;
 import javax.annotation.Nonnull;
 
 /**
  * List that consists of a head element and an immutable non-empty list.
  *
+ * <p>It is persistent: prepending an element to a list creates one cell and
+ * shares the list, so building a list by repeated prepending takes linear
+ * time, and {@link #tail(List)} takes constant time. The last cell's rest is
+ * an {@link ImmutableList}, which is backed by an array; so a list that came
+ * from, say, a relational expression or a foreign value, and has had a few
+ * elements prepended, is still fast to access by index.
+ *
  * @param <E> Element type
  */
 public class ConsList<E> extends AbstractImmutableList<E> {
   private final E first;
+  /** Either a ConsList or a non-empty ImmutableList. */
   private final List<E> rest;
+  private final int size;
 
   /** Creates a ConsList.
    * It consists of an element pre-pended to another list.
@@ -53,9 +64,25 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   private ConsList(E first, List<E> rest) {
     this.first = first;
     this.rest = rest;
+    this.size = 1 + rest.size();
+  }
+
+  /** Returns a list without its first element.
+   *
+   * <p>If the list is a ConsList, returns its rest, in constant time and
+   * without creating a new list; otherwise returns a sub-list. */
+  public static <E> List<E> tail(List<E> list) {
+    if (list instanceof ConsList) {
+      return ((ConsList<E>) list).rest;
+    }
+    return list.subList(1, list.size());
   }
 
   public E get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index " + index + ", size "
+          + size);
+    }
     for (ConsList<E> c = this;; c = (ConsList<E>) c.rest) {
       if (index == 0) {
         return c.first;
@@ -68,22 +95,22 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   }
 
   public int size() {
-    int s = 1;
-    for (ConsList c = this;; c = (ConsList) c.rest, ++s) {
-      if (!(c.rest instanceof ConsList)) {
-        return s + c.rest.size();
-      }
-    }
+    return size;
   }
 
   @Override public int hashCode() {
-    return toList().hashCode();
+    int h = 1;
+    for (E e : this) {
+      h = 31 * h + (e == null ? 0 : e.hashCode());
+    }
+    return h;
   }
 
   @Override public boolean equals(Object o) {
     return o == this
         || o instanceof List
-        && toList().equals(o);
+        && size == ((List) o).size()
+        && Iterables.elementsEqual(this, (List) o);
   }
 
   @Override public String toString() {
@@ -91,7 +118,7 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   }
 
   protected final List<E> toList() {
-    final List<E> list = new ArrayList<>();
+    final List<E> list = new ArrayList<>(size);
     for (ConsList<E> c = this;; c = (ConsList<E>) c.rest) {
       list.add(c.first);
       if (!(c.rest instanceof ConsList)) {
@@ -105,16 +132,61 @@ public class ConsList<E> extends AbstractImmutableList<E> {
     return toList().listIterator();
   }
 
+  /** Returns an iterator that walks the cells of this list, then iterates
+   * over the list in the last cell; it does not copy the list. */
   @Override @Nonnull public Iterator<E> iterator() {
-    return toList().iterator();
+    return new Iterator<E>() {
+      List<E> list = ConsList.this;
+      Iterator<E> restIterator;
+
+      public boolean hasNext() {
+        return restIterator == null || restIterator.hasNext();
+      }
+
+      public E next() {
+        if (restIterator != null) {
+          return restIterator.next();
+        }
+        final ConsList<E> c = (ConsList<E>) list;
+        list = c.rest;
+        if (!(list instanceof ConsList)) {
+          restIterator = list.iterator();
+        }
+        return c.first;
+      }
+    };
   }
 
   @Override @Nonnull public ListIterator<E> listIterator(int index) {
     return toList().listIterator(index);
   }
 
+  /** {@inheritDoc}
+   *
+   * <p>A sub-list that extends to the end of this list shares its cells. */
+  @Override @Nonnull public List<E> subList(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("from " + fromIndex + ", to "
+          + toIndex + ", size " + size);
+    }
+    if (fromIndex == toIndex) {
+      return ImmutableList.of();
+    }
+    if (toIndex < size) {
+      return ImmutableList.copyOf(this).subList(fromIndex, toIndex);
+    }
+    List<E> list = this;
+    for (int i = 0; i < fromIndex; i++) {
+      if (!(list instanceof ConsList)) {
+        return list.subList(fromIndex - i, list.size());
+      }
+      list = ((ConsList<E>) list).rest;
+    }
+    return list;
+  }
+
   @Nonnull public Object[] toArray() {
-    return toList().toArray();
+    return toArray(new Object[size]);
   }
 
   @Nonnull public <T> T[] toArray(@Nonnull T[] a) {
@@ -138,7 +210,14 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   }
 
   public int indexOf(Object o) {
-    return toList().indexOf(o);
+    int i = 0;
+    for (E e : this) {
+      if (Objects.equals(e, o)) {
+        return i;
+      }
+      ++i;
+    }
+    return -1;
   }
 
   public int lastIndexOf(Object o) {
@@ -0,0 +1,42 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel;
+
+/**
+ * Test that runs the same files as {@link ScriptTest}, compiling functions to
+ * JVM bytecode where possible, and checks that the results are the same.
+ */
+public class BytecodeScriptTest extends ScriptTest {
+  /** Creates a BytecodeScriptTest. Public per
+   * {@link org.junit.runners.Parameterized}. */
+  @SuppressWarnings("WeakerAccess")
+  public BytecodeScriptTest(String path) {
+    super(path);
+  }
+
+  @Override protected String[] args() {
+    return new String[] {"--echo", "--backend=bytecode"};
+  }
+
+  @Override protected String outDir() {
+    return "surefire-bytecode/";
+  }
+}
+
+// End BytecodeScriptTest.java
@@ -25,6 +25,12 @@ import com.google.common.collect.Sets;
 
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.AstNode;
+import net.hydromatic.morel.eval.Applicable;
+import net.hydromatic.morel.eval.Closure;
+import net.hydromatic.morel.eval.Codes;
+import net.hydromatic.morel.eval.DataValue;
+import net.hydromatic.morel.eval.EvalEnv;
+import net.hydromatic.morel.eval.FunctionProfile;
 import net.hydromatic.morel.parse.ParseException;
 import net.hydromatic.morel.type.TypeVar;
 
@@ -51,6 +57,7 @@ import static net.hydromatic.morel.Ml.ml;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
@@ -153,6 +160,86 @@ public class MainTest {
     assertThat(out.toString(), is(expected));
   }
 
+  /** Tests the tiered backend, which interprets a function until it has been
+   * called {@code --compile-threshold} times, then compiles it. */
+  @Test public void testTiered() {
+    final String[] args = {"--backend=tiered", "--compile-threshold=3"};
+    final String ml = "fun fact n = if n = 0 then 1 else n * fact (n - 1);\n"
+        + "fun greet s = \"hello, \" ^ s;\n"
+        + "Sys_profile ();\n"
+        + "fact 1;\n"
+        + "fact 5;\n"
+        + "greet \"a\";\n"
+        + "Sys_profile ();\n";
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PrintStream ps = new PrintStream(out)) {
+      final InputStream in = new ByteArrayInputStream(ml.getBytes());
+      new Main(args, in, ps, ImmutableMap.of()).run();
+    }
+    final String expected = "val fact = fn : int -> int\n"
+        + "val greet = fn : string -> string\n"
+        + "val it =\n"
+        + "  [{calls=0,name=\"fact\",tier=\"interpreted\"},\n"
+        + "   {calls=0,name=\"greet\",tier=\"interpreted\"}]\n"
+        + "  : {calls:int, name:string, tier:string} list\n"
+        + "val it = 1 : int\n"
+        + "val it = 120 : int\n"
+        + "val it = \"hello, a\" : string\n"
+        + "val it =\n"
+        + "  [{calls=3,name=\"fact\",tier=\"compiled\"},\n"
+        + "   {calls=1,name=\"greet\",tier=\"interpreted\"}]\n"
+        + "  : {calls:int, name:string, tier:string} list\n";
+    assertThat(out.toString(), is(expected));
+  }
+
+  /** Tests that if compiling a function fails when it reaches the compile
+   * threshold, the function continues to be interpreted, and gives the same
+   * results. */
+  @Test public void testTieredCompileFails() {
+    final Closure closure = (Closure) ml("fn x => x * 2").eval();
+    final FunctionProfile profile = new FunctionProfile("f", 2, () -> {
+      throw new IllegalStateException("cannot compile");
+    });
+    final EvalEnv env = Codes.emptyEnv();
+    final Applicable f =
+        (Applicable) Codes.profile(env2 -> closure, profile).eval(env);
+    for (int i = 0; i < 5; i++) {
+      assertThat(f.apply(env, i), is(i * 2));
+    }
+    assertThat(profile.tier(), is(FunctionProfile.Tier.NOT_COMPILABLE));
+    assertThat(profile.count(), is(5L));
+  }
+
+  /** Tests that invalid values of the {@code --backend} and
+   * {@code --compile-threshold} arguments are rejected. */
+  @Test public void testBackendArgs() {
+    checkArgs("Invalid argument '--compile-threshold=x'; compile threshold "
+        + "must be a positive integer", "--compile-threshold=x");
+    checkArgs("Invalid argument '--compile-threshold=0'; compile threshold "
+        + "must be a positive integer", "--compile-threshold=0");
+    checkArgs("Invalid argument '--backend=jit'; backend must be one of "
+        + "[interpreter, bytecode, tiered]", "--backend=jit");
+    checkArgs("Conflicting arguments '--backend=bytecode' and "
+        + "'--backend=tiered'", "--backend=bytecode", "--backend=tiered");
+    checkArgs(null, "--backend=tiered", "--backend=tiered",
+        "--compile-threshold=1");
+  }
+
+  /** Creates a {@link Main} with the given arguments, and checks that it
+   * throws an error with the expected message (or no error, if the expected
+   * message is null). */
+  private static void checkArgs(String expected, String... args) {
+    final InputStream in = new ByteArrayInputStream(new byte[0]);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String message = null;
+    try (PrintStream ps = new PrintStream(out)) {
+      new Main(args, in, ps, ImmutableMap.of());
+    } catch (IllegalArgumentException e) {
+      message = e.getMessage();
+    }
+    assertThat(message, is(expected));
+  }
+
   @Test public void testParse() {
     ml("1").assertParseLiteral(isLiteral(BigDecimal.ONE, "1"));
     ml("~3.5").assertParseLiteral(isLiteral(new BigDecimal("-3.5"), "~3.5"));
@@ -575,6 +662,16 @@ public class MainTest {
     ml("\"a\" >= \"ab\"").assertEval(is(false));
     ml("\"ac\" >= \"ab\"").assertEval(is(true));
     ml("1 + 4 = 2 + 3").assertEval(is(true));
+    ml("#\"a\" < #\"b\"").assertEval(is(true));
+    ml("#\"a\" = #\"b\"").assertEval(is(false));
+    ml("true = true").assertEval(is(true));
+    ml("(1, \"a\") = (1, \"a\")").assertEval(is(true));
+    ml("(1, \"a\") = (1, \"b\")").assertEval(is(false));
+    ml("{a = 1, b = 2.5} <> {b = 2.5, a = 1}").assertEval(is(false));
+    ml("(1, (2, \"b\")) = (1, (2, \"b\"))").assertEval(is(true));
+    ml("[1, 2] = [1, 2]").assertEval(is(true));
+    ml("(1, 3) < (2, 1)").assertEval(is(true));
+    ml("(1, \"b\") >= (1, \"c\")").assertEval(is(false));
     ml("1 + 2 * 2 = 2 + 3").assertEval(is(true));
     ml("1 + 2 * 2 < 2 + 3").assertEval(is(false));
     ml("1 + 2 * 2 > 2 + 3").assertEval(is(false));
@@ -587,6 +684,13 @@ public class MainTest {
     ml("2 * 3").assertEval(is(6));
     ml("20 / 3").assertEval(is(6));
     ml("20 / ~3").assertEval(is(-6));
+    ml("1.5 + 2.0 * 3.0").assertEval(is(7.5f));
+    ml("7.0 / 2.0 - 0.5").assertEval(is(3.0f));
+    ml("1.5 < 2.5").assertEval(is(true));
+    ml("2.5 >= 2.5").assertEval(is(true));
+    ml("2.5 <> 2.5").assertEval(is(false));
+    ml("let fun f (x, y) = x * x + y * y < 25 in (f (3, 3), f (3, 4)) end")
+        .assertEval(is(list(true, false)));
 
     ml("10 mod 3").assertEval(is(1));
     ml("~10 mod 3").assertEval(is(2));
@@ -770,10 +874,268 @@ public class MainTest {
     ml(ml).assertEval(is(13));
   }
 
+  /** Tests that variables are resolved to the right environment when names
+   * are shadowed and scopes are nested. */
+  @Test public void testShadow() {
+    ml("let val x = 1 in let val y = 2 in let val x = 3 in x + y end end end")
+        .assertEval(is(5));
+    ml("let val x = 1 in (fn y => fn x => x + y) x 10 end")
+        .assertEval(is(11));
+    ml("let val (x, y) = (1, 2) in\n"
+        + "  (fn (a, b) => x * 100 + y * 10 + a + b) (3, 4)\n"
+        + "end")
+        .assertEval(is(127));
+    // The first arm binds "x" before it fails to match; the second arm must
+    // not see that binding
+    ml("case (5, 2) of (x, 1) => x | (y, z) => y + z").assertEval(is(7));
+    ml("from x in [1, 2], y in [x, 10] where y > x yield x + y")
+        .assertEvalIter(equalsOrdered(11, 12));
+  }
+
+  /** Tests variables that are allocated slots in the frame of a function or
+   * of a "let". */
+  @Test public void testFrame() {
+    final String ml = "let\n"
+        + "  fun f (a, b) =\n"
+        + "    let\n"
+        + "      val c = a + b\n"
+        + "      val (d, e) = (c * 2, c * 3)\n"
+        + "      fun g x = x + c\n"
+        + "    in\n"
+        + "      g (d + e)\n"
+        + "    end\n"
+        + "in\n"
+        + "  f (1, 2) + f (10, 20)\n"
+        + "end";
+    ml(ml).assertEval(is(18 + 180));
+    final String ml2 = "let\n"
+        + "  fun len [] = 0\n"
+        + "    | len (h :: t) = let val n = len t in n + 1 end\n"
+        + "in\n"
+        + "  len [1, 2, 3]\n"
+        + "end";
+    ml(ml2).assertEval(is(3));
+    ml("from x in [1, 2] yield let val y = x * 10 in y + x end")
+        .assertEvalIter(equalsOrdered(11, 22));
+  }
+
+  /** Tests that closures capture the values of the variables they reference,
+   * including variables of functions several levels out, and of the
+   * function itself. */
+  @Test public void testClosureCapture() {
+    ml("let val a = 1 in fn b => fn c => fn d => a + b + c + d end 2 3 4")
+        .assertEval(is(10));
+    final String ml = "let\n"
+        + "  val k = 3\n"
+        + "  fun sum 0 = 0\n"
+        + "    | sum n = k + sum (n - 1)\n"
+        + "in\n"
+        + "  (sum 0, sum 4)\n"
+        + "end";
+    ml(ml).assertEval(is(list(0, 12)));
+    // Each closure captures the value of "x" when it was created
+    final String ml2 = "let\n"
+        + "  val fs = from x in [1, 2, 3] yield fn y => x * y\n"
+        + "in\n"
+        + "  map (fn f => f 10) fs\n"
+        + "end";
+    ml(ml2).assertEval(is(list(10, 20, 30)));
+  }
+
+  /** Tests that the arms of a match are tried in order, even though the
+   * arms that cannot match are skipped. */
+  @Test public void testMatchArms() {
+    final String ml = "let\n"
+        + "  fun f (0, y) = \"a\" ^ y\n"
+        + "    | f (1, \"x\") = \"b\"\n"
+        + "    | f (x, \"y\") = \"c\"\n"
+        + "    | f (1, y) = \"d\" ^ y\n"
+        + "    | f (x, y) = \"e\" ^ y\n"
+        + "in\n"
+        + "  [f (0, \"y\"), f (1, \"x\"), f (1, \"y\"), f (1, \"z\"),\n"
+        + "   f (2, \"y\"), f (2, \"z\")]\n"
+        + "end";
+    ml(ml).assertEval(is(list("ay", "b", "c", "dz", "c", "ez")));
+    final String ml2 = "let\n"
+        + "  fun g [] = 0\n"
+        + "    | g [x] = x\n"
+        + "    | g (x :: y :: _) = x + y\n"
+        + "in\n"
+        + "  [g [], g [3], g [4, 5], g [6, 7, 8]]\n"
+        + "end";
+    ml(ml2).assertEval(is(list(0, 3, 9, 13)));
+    ml("case 1.5 of 0.5 => 1 | 1.5 => 2 | _ => 3").assertEval(is(2));
+    ml("case (true, #\"b\") of (false, _) => 1 | (_, #\"a\") => 2\n"
+        + " | (true, #\"b\") => 3 | _ => 4").assertEval(is(3));
+    ml("from (x, 1) in [(1, 1), (2, 2), (3, 1)], (y, z) in [(x, 0)]\n"
+        + "yield x + y + z")
+        .assertEvalIter(equalsOrdered(2, 6));
+  }
+
+  /** Tests that the compiler evaluates constant expressions at compile time,
+   * and that simplification does not change the results of expressions. */
+  @Test public void testSimplify() {
+    ml("1 + 2 * 3").assertConstant(true).assertEval(is(7));
+    ml("\"a\" ^ \"b\"").assertConstant(true).assertEval(is("ab"));
+    ml("(1, [2, 3], {a = 4.5})").assertConstant(true)
+        .assertEval(is(list(1, list(2, 3), list(4.5f))));
+    ml("if 1 < 2 then \"yes\" else \"no\"").assertConstant(true)
+        .assertEval(is("yes"));
+    ml("if false then 1 div 0 else 2").assertEval(is(2));
+    ml("2 > 3 andalso 1 div 0 = 0").assertConstant(true)
+        .assertEval(is(false));
+    ml("2 < 3 orelse 1 div 0 = 0").assertConstant(true)
+        .assertEval(is(true));
+    ml("abs ~3").assertConstant(true).assertEval(is(3));
+    // Division by zero is not folded; it would fail at run time
+    ml("1 div 0").assertConstant(false);
+
+    // Beta reduction
+    ml("(fn (x, y) => x * 10 + y) (3, 4)").assertEval(is(34));
+    ml("(fn {a = x, b = _} => x) {a = 1, b = 2}").assertEval(is(1));
+    ml("case (1, 2) of (x, y) => x * 10 + y").assertEval(is(12));
+    ml("let val x = 1 in (fn x => x + 1) (x + 10) end").assertEval(is(12));
+    ml("fn y => (fn x => x + y) 3").assertType("int -> int");
+    ml("(fn y => (fn x => x + y) 3) 4").assertEval(is(7));
+
+    // Unused "let" variables
+    ml("let val f = fn x => x val y = 3 in 5 end").assertEval(is(5));
+    ml("let fun f x = f x in 5 end").assertEval(is(5));
+    ml("let val (a, b) = (1, 2) in b end").assertEval(is(2));
+  }
+
   @Test public void testEvalFn() {
     ml("(fn x => x + 1) 2").assertEval(is(3));
   }
 
+  /** Tests an apply site that sees the same closure code several times,
+   * then different closures, then a built-in function. */
+  @Test public void testApplySite() {
+    final String ml = "let\n"
+        + "  fun app f x = f x\n"
+        + "  fun twice f x = app f (app f x)\n"
+        + "in\n"
+        + "  (twice (fn x => x + 1) 1,\n"
+        + "   twice (fn x => x * 10) 2,\n"
+        + "   app abs ~3,\n"
+        + "   app (fn x => case x of 0 => 100 | y => y) 0)\n"
+        + "end";
+    ml(ml).assertEval(is(list(3, 200, 3, 100)));
+    ml("map (fn (x, y) => x + y) [(1, 2), (3, 4)]")
+        .assertEval(is(list(3, 7)));
+  }
+
+  /** Tests calls whose argument is a tuple expression. If the function's
+   * pattern is a tuple pattern, the call binds the fields without creating a
+   * tuple. */
+  @Test public void testApplyTuple() {
+    final String ml = "let\n"
+        + "  fun f (x, (y, z)) = x + y * z\n"
+        + "  fun g p = case p of (x, _) => x\n"
+        + "  fun h (0, y) = y | h (x, y) = x\n"
+        + "  fun call k = k (3, 4)\n"
+        + "in\n"
+        + "  (f (1, (2, 3)), f (4, (5, 6)), g (7, 8), h (0, 9), h (1, 9),\n"
+        + "   call (fn (a, b) => a * b), call (fn (a, _) => a),\n"
+        + "   call (fn p => case p of (a, b) => a - b))\n"
+        + "end";
+    ml(ml).assertEval(is(list(7, 34, 7, 9, 1, 12, 3, -1)));
+  }
+
+  /** Tests chains of {@code List.map} and {@code List.filter} that are
+   * evaluated in a single pass over the source list. */
+  @Test public void testFusion() {
+    final String ml = "let\n"
+        + "  val xs = [1, 2, 3, 4, 5, 6]\n"
+        + "  fun even x = x mod 2 = 0\n"
+        + "  fun double x = x * 2\n"
+        + "in\n"
+        + "  (List_foldl (fn (x, acc) => x + acc) 0\n"
+        + "     (List_map double (List_filter even xs)),\n"
+        + "   List_length (List_filter even (List_map (fn x => x + 1) xs)),\n"
+        + "   List_exists (fn x => x > 10) (List_map double xs),\n"
+        + "   List_all even (List_map double (List_filter even xs)),\n"
+        + "   List_map (fn x => x + 1) (List_filter even (List_map double\n"
+        + "     (List_filter (fn x => x > 2) xs))))\n"
+        + "end";
+    ml(ml).assertEval(is(list(24, 3, true, true, list(7, 9, 11, 13))));
+
+    // A stage that may fail is not fused, so "List.exists" does not stop
+    // before the stage has been applied to every element.
+    final String ml2 = "List_exists (fn y => y > 0)\n"
+        + "  (List_map (fn x => 10 div (x - 2)) [3, 2])";
+    ml(ml2).assertEvalError(
+        throwsA(ArithmeticException.class, is("/ by zero")));
+    final String ml3 = "List_exists (fn y => y > 0)\n"
+        + "  (List_map (fn x => x - 2) [3, 2])";
+    ml(ml3).assertEval(is(true));
+
+    // A stage that calls a function parameter may fail, because we cannot
+    // see the function's body, so it is not fused either.
+    final String ml4 = "List_exists (fn b => b)\n"
+        + "  (List_map (fn g => g 0)\n"
+        + "    [fn _ => true, fn _ => List_hd (List_tl [true])])";
+    ml(ml4).assertEvalError(
+        throwsA(IndexOutOfBoundsException.class, notNullValue()));
+  }
+
+  /** Tests the parallel list functions. The lists are large enough to be
+   * split between several tasks, and results must be in the same order as
+   * the sequential functions'. */
+  @Test public void testParallel() {
+    final String ml = "let\n"
+        + "  val xs = List_tabulate (10000, fn i => i)\n"
+        + "  val ys = List_parMap (fn x => x * 2) xs\n"
+        + "  val zs = List_parFilter (fn x => x mod 3 = 0) ys\n"
+        + "  val ws = List_parTabulate (5000, fn i => i * i)\n"
+        + "  fun sum l = List_foldl (fn (x, acc) => x + acc) 0 l\n"
+        + "in\n"
+        + "  (ys = List_map (fn x => x * 2) xs,\n"
+        + "   zs = List_filter (fn x => x mod 3 = 0) ys,\n"
+        + "   ws = List_tabulate (5000, fn i => i * i),\n"
+        + "   sum ys, sum zs, List_nth (ws, 4999),\n"
+        + "   List_parMap (fn x => x + 1) [1, 2, 3])\n"
+        + "end";
+    final List<Object> expected =
+        list(true, true, true, 99990000, 33336666, 24990001, list(2, 3, 4));
+    ml(ml).assertEval(is(expected));
+  }
+
+  /** Tests {@code List.reduce}. The lists are large enough to be reduced by
+   * parallel tasks; the function is associative but not commutative, so the
+   * result is correct only if the tasks' results are combined in order. */
+  @Test public void testReduce() {
+    final String ml = "let\n"
+        + "  val xs = List_tabulate (10000, fn i => i)\n"
+        + "  fun sum l = List_reduce (fn (x, y) => x + y) 0 l\n"
+        + "  val firsts = List_map (fn i => (i, i)) xs\n"
+        + "  val (first, last) =\n"
+        + "    List_reduce (fn ((a, _), (_, d)) => (a, d)) (~1, ~1) firsts\n"
+        + "in\n"
+        + "  (List_reduce (fn (x, y) => x + y) 0 xs, first, last,\n"
+        + "   List_reduce (fn (x, y) => if x > y then x else y) 0 xs)\n"
+        + "end";
+    ml(ml).assertEval(is(list(49995000, -1, 9999, 9999)));
+  }
+
+  /** Tests that if the function given to a parallel list function fails
+   * for several elements, the failure for the leftmost element is thrown,
+   * as it would be if the elements were evaluated in order. */
+  @Test public void testParallelError() {
+    // The last element is in the range that the calling thread evaluates
+    // first.
+    final String fn = "(fn x => if x = 100 then x div 0\n"
+        + "  else if x = 9999 then List_hd [] else x)";
+    final String xs = "(List_tabulate (10000, fn i => i))";
+    final Matcher<Throwable> matcher =
+        throwsA(ArithmeticException.class, is("/ by zero"));
+    ml("List_parMap " + fn + " " + xs).assertEvalError(matcher);
+    ml("List_parFilter (fn x => " + fn + " x > 0) " + xs)
+        .assertEvalError(matcher);
+    ml("List_reduce (fn (x, y) => x + " + fn + " y) 0 " + xs)
+        .assertEvalError(matcher);
+  }
+
   @Test public void testEvalFnCurried() {
     ml("(fn x => fn y => x + y) 2 3").assertEval(is(5));
   }
@@ -946,6 +1308,34 @@ public class MainTest {
     ml(ml).assertEval(is(7));
   }
 
+  /** Nested "case" whose arms bind different numbers of variables. The
+   * variables are bound into the frame of the enclosing function, and the
+   * arms of each "case" share slots. */
+  @Test public void testCaseNested() {
+    final String ml = "let\n"
+        + "  fun pairs xs =\n"
+        + "    case xs of\n"
+        + "        [] => []\n"
+        + "      | x :: rest =>\n"
+        + "          case rest of\n"
+        + "              [] => [(x, 0)]\n"
+        + "            | y :: rest2 =>\n"
+        + "                let\n"
+        + "                  val f = fn z => x + y + z\n"
+        + "                in\n"
+        + "                  (x, f 0) :: (y, f 1) :: pairs rest2\n"
+        + "                end\n"
+        + "in\n"
+        + "  pairs [1, 2, 3, 4, 5]\n"
+        + "end";
+    final List<Object> expected =
+        list(list(1, 3), list(2, 4), list(3, 7), list(4, 8), list(5, 0));
+    ml(ml).assertEval(is(expected));
+    ml("(case 2 of 1 => 10 | n => n * 10)\n"
+        + " + (case [3, 4] of [a] => a | a :: b :: _ => a * b | _ => 0)")
+        .assertEval(is(32));
+  }
+
   /** Function declaration. */
   @Test public void testFun() {
     final String ml = "let\n"
@@ -1062,9 +1452,10 @@ public class MainTest {
         + "in\n"
         + "  RATIONAL (2, 3)\n"
         + "end";
+    // Constructors are sorted, so INTEGER is 0, RATIONAL is 1, ZERO is 2
     ml(ml).assertParseSame()
         .assertType("(INTEGER of int | RATIONAL of int * int | ZERO)")
-        .assertEval(is(ImmutableList.of("RATIONAL", ImmutableList.of(2, 3))));
+        .assertEval(is(new DataValue(1, "RATIONAL", ImmutableList.of(2, 3))));
   }
 
   @Test public void testDatatype3() {
@@ -1135,6 +1526,28 @@ public class MainTest {
         .assertEval(is(2));
   }
 
+  /** Tests matching, comparing and sorting values of a datatype that has
+   * several constructors. */
+  @Test public void testDatatype5() {
+    final String ml = "let\n"
+        + " datatype shape = CIRCLE of int | SQUARE of int | DOT;\n"
+        + " fun area (CIRCLE r) = 3 * r * r\n"
+        + "   | area (SQUARE s) = s * s\n"
+        + "   | area DOT = 0;\n"
+        + " val shapes = [SQUARE 2, DOT, CIRCLE 1, SQUARE 1]\n"
+        + "in\n"
+        + " (map area shapes, SQUARE 2 = SQUARE 2, SQUARE 2 = SQUARE 3,\n"
+        + "  DOT = DOT, from s in shapes order s)\n"
+        + "end";
+    ml(ml).assertEval(
+        is(
+            list(list(4, 0, 3, 1), true, false, true,
+                list(new DataValue(0, "CIRCLE", 1),
+                    new DataValue(1, "DOT", null),
+                    new DataValue(2, "SQUARE", 1),
+                    new DataValue(2, "SQUARE", 2)))));
+  }
+
   @Test public void testFrom() {
     final String ml = "let\n"
         + "  val emps = [\n"
@@ -1350,6 +1763,40 @@ public class MainTest {
         .assertType(is("int list"));
   }
 
+  /** Tests the {@code take} step, which passes at most a given number of
+   * rows. */
+  @Test public void testTake() {
+    ml("from e in emp take 10").assertParseSame();
+    ml("from e in emp order e.x desc take 2 + 3 yield e.y")
+        .assertParse("from e in emp order #x e desc take 2 + 3 yield #y e");
+    ml("from e in [1, 2, 3] take 2")
+        .assertType("int list")
+        .assertEval(is(list(1, 2)));
+    ml("from e in [1, 2, 3] take 0").assertEval(is(list()));
+    ml("from e in [1, 2, 3] take ~1").assertEval(is(list()));
+    ml("from e in [1, 2, 3] take 5").assertEval(is(list(1, 2, 3)));
+    ml("from e in [1, 2, 3] take e")
+        .assertEvalError(throwsA("unbound variable or constructor: e"));
+    ml("from e in [1, 2, 3] take true")
+        .assertTypeThrows(throwsA("Cannot deduce type"));
+
+    // "take" after "order" keeps only the first rows
+    ml("from e in [3, 1, 4, 1, 5, 9, 2, 6] order e desc take 3")
+        .assertEval(is(list(9, 6, 5)));
+    ml("let val n = 2 in\n"
+        + "  from e in [{x = 1, y = 1}, {x = 0, y = 2}, {x = 1, y = 3},\n"
+        + "      {x = 0, y = 4}]\n"
+        + "  order e.x\n"
+        + "  take n + 1\n"
+        + "  yield e.y\n"
+        + "end")
+        .assertEval(is(list(2, 4, 1)));
+
+    // "take" stops the loops of a join early
+    ml("from i in [1, 2, 3], j in [10, 20] take 3 yield i + j")
+        .assertEval(is(list(11, 21, 12)));
+  }
+
   @Test public void testGroupSansOf() {
     ml("from e in [{x = 1, y = 5}, {x = 0, y = 1}, {x = 1, y = 1}]\n"
         + "  group compute c = count")
@@ -31,6 +31,7 @@ import net.hydromatic.morel.compile.TypeResolver;
 import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.EvalEnv;
+import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.parse.MorelParserImpl;
 import net.hydromatic.morel.parse.ParseException;
@@ -188,7 +189,8 @@ class Ml {
         final AstNode statement = parser.statement();
         final Environment env = Environments.empty();
         final CompiledStatement compiled =
-            Compiles.prepareStatement(typeSystem, env, statement);
+            Compiles.prepareStatement(typeSystem, new Session(), env,
+                statement);
         action.accept(compiled);
       } catch (ParseException e) {
         throw new RuntimeException(e);
@@ -201,21 +203,38 @@ class Ml {
   }
 
   Ml assertEval(Matcher<Object> matcher) {
+    assertThat(eval(), matcher);
+    return this;
+  }
+
+  /** Evaluates the expression and returns its value. */
+  Object eval() {
+    final TypeSystem typeSystem = new TypeSystem();
+    final Environment env = Environments.env(typeSystem, valueMap);
+    final Code code = compile(typeSystem, env);
+    final EvalEnv evalEnv = Codes.emptyEnvWith(env);
+    return code.eval(evalEnv);
+  }
+
+  /** Asserts whether the compiler was able to evaluate the expression at
+   * compile time. */
+  Ml assertConstant(boolean constant) {
+    final TypeSystem typeSystem = new TypeSystem();
+    final Environment env = Environments.env(typeSystem, valueMap);
+    final Code code = compile(typeSystem, env);
+    assertThat(code.isConstant(), is(constant));
+    return this;
+  }
+
+  private Code compile(TypeSystem typeSystem, Environment env) {
     try {
       final Ast.Exp e = new MorelParserImpl(new StringReader(ml)).expression();
-      final TypeSystem typeSystem = new TypeSystem();
-      final Environment env = Environments.env(typeSystem, valueMap);
       final Ast.ValDecl valDecl = Compiles.toValDecl(e);
       final TypeResolver.Resolved resolved =
           TypeResolver.deduceType(env, valDecl, typeSystem);
       final Ast.ValDecl valDecl2 = (Ast.ValDecl) resolved.node;
-      final Code code =
-          new Compiler(resolved.typeMap)
-              .compile(env, Compiles.toExp(valDecl2));
-      final EvalEnv evalEnv = Codes.emptyEnvWith(env);
-      final Object value = code.eval(evalEnv);
-      assertThat(value, matcher);
-      return this;
+      return new Compiler(resolved.typeMap)
+          .compile(env, Compiles.toExp(valDecl2));
     } catch (ParseException e) {
       throw new RuntimeException(e);
     }
@@ -145,10 +145,10 @@ public class ScriptTest {
       final URL inUrl = MainTest.class.getResource("/" + Utils.n2u(path));
       inFile = Utils.urlToFile(inUrl);
       outFile = new File(inFile.getAbsoluteFile().getParent(),
-          Utils.u2n("surefire/") + path + ".out");
+          Utils.u2n(outDir()) + path + ".out");
     }
     Utils.discard(outFile.getParentFile().mkdirs());
-    final String[] args = {"--echo"};
+    final String[] args = args();
     final boolean loadDictionary =
         inFile.getPath().contains("foreign.sml")
             || inFile.getPath().contains("blog.sml");
@@ -170,6 +170,17 @@ public class ScriptTest {
     }
   }
 
+  /** Returns the arguments with which to run {@link Main}. */
+  protected String[] args() {
+    return new String[] {"--echo"};
+  }
+
+  /** Returns the directory, relative to the directory of the script, in
+   * which to write output files. */
+  protected String outDir() {
+    return "surefire/";
+  }
+
   protected static Collection<Object[]> data(String first) {
     // inUrl = "file:/home/fred/morel/target/test-classes/script/agg.sml"
     final URL inUrl = MainTest.class.getResource("/" + Utils.n2u(first));
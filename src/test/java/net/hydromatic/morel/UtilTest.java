@@ -18,6 +18,9 @@
  */
 package net.hydromatic.morel;
 
+import com.google.common.collect.ImmutableList;
+
+import net.hydromatic.morel.util.ConsList;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.TailList;
@@ -26,6 +29,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.core.Is.is;
@@ -72,6 +76,39 @@ public class UtilTest {
     assertThat(list.isEmpty(), is(false));
   }
 
+  /** Tests {@link ConsList}. */
+  @Test public void testConsList() {
+    final List<String> abc = ImmutableList.of("b", "c");
+    final List<String> list = ConsList.of("a", abc);
+    assertThat(list.size(), is(3));
+    assertThat(list.get(0), is("a"));
+    assertThat(list.get(2), is("c"));
+    assertThat(list.toString(), is("[a, b, c]"));
+    assertThat(list, is(Arrays.asList("a", "b", "c")));
+    assertThat(Arrays.asList("a", "b", "c").equals(list), is(true));
+    assertThat(list.hashCode(), is(Arrays.asList("a", "b", "c").hashCode()));
+    assertThat(String.join(",", list), is("a,b,c"));
+
+    // Prepending shares the existing cells
+    final List<String> list2 = ConsList.of("z", list);
+    assertThat(list2.toString(), is("[z, a, b, c]"));
+    assertThat(ConsList.tail(list2) == list, is(true));
+    assertThat(ConsList.tail(list) == abc, is(true));
+    assertThat(ConsList.tail(abc), is(Collections.singletonList("c")));
+    assertThat(list2.subList(1, 4) == list, is(true));
+    assertThat(list2.subList(3, 4), is(Collections.singletonList("c")));
+    assertThat(list2.subList(1, 3), is(Arrays.asList("a", "b")));
+    assertThat(list2.subList(2, 2).isEmpty(), is(true));
+    assertThat(list2.indexOf("b"), is(2));
+    assertThat(list2.indexOf("x"), is(-1));
+
+    // Prepending to an empty or mutable list creates an immutable list
+    assertThat(ConsList.of("a", ImmutableList.of()),
+        is(Collections.singletonList("a")));
+    assertThat(ConsList.of("a", new ArrayList<>(abc)) instanceof ImmutableList,
+        is(true));
+  }
+
   @Test public void testOrd() {
     final List<String> abc = Arrays.asList("a", "b", "c");
     final StringBuilder buf = new StringBuilder();